@@ -6,29 +6,81 @@ import com.github.dapeng.metadata.GetServiceMetadata_argsSerializer;
 import com.github.dapeng.metadata.GetServiceMetadata_resultSerializer;
 import com.github.dapeng.metadata.getServiceMetadata_args;
 import com.github.dapeng.metadata.getServiceMetadata_result;
+import com.github.dapeng.openapi.utils.EnvUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 获取 远程服务matedata的方法
+ * <p>
+ * 按 host:port 复用 {@link SubPool}(及其连接), 不再每次获取都新建连接.
+ * 实例从zk注销(不在任何服务的实例列表中)后由 ZookeeperClient 调用 {@link #removeSubPool(String, int)} 移除其连接池,
+ * 缓存的连接池数量因此不超过当前注册的实例数. SubPool 没有关闭连接的接口, 仍在注册的实例的连接池不做淘汰,
+ * 否则只会丢掉引用而连接仍然存在; 数量超出 soa.openapi.metadata.direct.pool.warn(默认 512) 时输出告警.
+ * <p>
+ * 配置: soa.openapi.metadata.direct.timeout.ms(请求超时, 默认 500)
  *
  * @author huyj
  * @Created 2018/5/11 10:57
  */
 public class MetadataUtils {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetadataUtils.class);
 
-    private static final long TIME_OUT = 500;
+    private static final long TIME_OUT = EnvUtil.getInt("soa.openapi.metadata.direct.timeout.ms", 500);
     private static final String METADATA_METHOD = "getServiceMetadata";
 
+    private static final int WARN_POOLS = EnvUtil.getInt("soa.openapi.metadata.direct.pool.warn", 512);
+
+    /**
+     * host:port -> 连接池
+     */
+    private static final Map<String, SubPool> subPools = new ConcurrentHashMap<>();
+
     /**
      * getRomoteServiceMetadata
      **/
     public static String getRomoteServiceMetadata(String romoteIp, Integer remotePort,String serviceName,String version) throws Exception {
         InvocationContextImpl.Factory.currentInstance().sessionTid(DapengUtil.generateTid()).callerMid("InnerApiSite");
 
-        SubPool subPool = new SubPool(romoteIp, remotePort);
+        SubPool subPool = subPoolOf(romoteIp, remotePort);
         getServiceMetadata_result result = subPool.getConnection().send(serviceName, version, METADATA_METHOD,
                 new getServiceMetadata_args(),
                 new GetServiceMetadata_argsSerializer(),
                 new GetServiceMetadata_resultSerializer(),TIME_OUT);
         return result.getSuccess();
     }
+
+    /**
+     * @return 当前缓存的连接池数量
+     */
+    public static int getPoolCount() {
+        return subPools.size();
+    }
+
+    /**
+     * 实例已下线, 移除其连接池. 对端已经不在, 连接随之失效
+     */
+    public static void removeSubPool(String ip, int port) {
+        if (subPools.remove(ip + ":" + port) != null) {
+            LOGGER.info("metadata 连接池 {}:{} 对应的实例已下线, 移除", ip, port);
+        }
+    }
+
+    private static SubPool subPoolOf(String ip, int port) {
+        String key = ip + ":" + port;
+        SubPool subPool = subPools.get(key);
+        if (subPool == null) {
+            subPool = subPools.computeIfAbsent(key, k -> {
+                int count = subPools.size() + 1;
+                if (count > WARN_POOLS) {
+                    LOGGER.warn("metadata 连接池数量 {} 超出 {}, 新建 {}", count, WARN_POOLS, k);
+                }
+                return new SubPool(ip, port);
+            });
+        }
+        return subPool;
+    }
 }
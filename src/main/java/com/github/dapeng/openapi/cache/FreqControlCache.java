@@ -0,0 +1,186 @@
+package com.github.dapeng.openapi.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * 网关限流, 规则来自 /soa/config/freq/服务全限定名, 格式与 dapeng 一致:
+ * <pre>
+ * [rule1]
+ * match_app = getSkuPrice      # 方法名, * 表示所有方法
+ * rule_type = callerIp         # all, callerMid, userId, callerIp
+ * min_interval = 60,600        # 60 秒内最多 600 次
+ * mid_interval = 3600,10000
+ * max_interval = 86400,80000
+ * </pre>
+ * 配置变化时只重建节点内容有变化的服务的规则(计数随之重置), 其他服务保留原有规则及计数.
+ * 请求线程只读取不可变的规则索引, 计数使用 CAS 更新.
+ * 调用上下文中没有 rule_type 对应的调用者信息(例如未传 userId)时, 该规则不生效.
+ */
+public final class FreqControlCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FreqControlCache.class);
+
+    private static final FreqControlRule[] NO_RULES = new FreqControlRule[0];
+
+    /**
+     * 服务名(全限定名 与 SimpleName) -> 方法名 -> 规则; 方法名 "*" 的规则对所有方法生效, 已合并到各方法中
+     */
+    private static volatile Map<String, ServiceRules> rules = Collections.emptyMap();
+
+    private static final class ServiceRules {
+        /**
+         * 规则来源的节点内容, 用于判断配置是否变化
+         */
+        final String config;
+        final Map<String, FreqControlRule[]> methods;
+        final FreqControlRule[] anyMethod;
+
+        ServiceRules(String config, Map<String, FreqControlRule[]> methods, FreqControlRule[] anyMethod) {
+            this.config = config;
+            this.methods = methods;
+            this.anyMethod = anyMethod;
+        }
+    }
+
+    private FreqControlCache() {
+    }
+
+    /**
+     * 检查并计数
+     *
+     * @return 超出任一规则限制时返回 false
+     */
+    public static boolean tryAcquire(String service, String method, String callerMid, Long userId, String callerIp) {
+        ServiceRules serviceRules = rules.get(service);
+        if (serviceRules == null) {
+            return true;
+        }
+        FreqControlRule[] matched = serviceRules.methods.get(method);
+        if (matched == null) {
+            matched = serviceRules.anyMethod;
+        }
+        long now = System.currentTimeMillis();
+        for (FreqControlRule rule : matched) {
+            String callerKey;
+            switch (rule.ruleType) {
+                case callerMid:
+                    callerKey = callerMid;
+                    break;
+                case userId:
+                    callerKey = userId == null ? null : userId.toString();
+                    break;
+                case callerIp:
+                    callerKey = callerIp;
+                    break;
+                default:
+                    callerKey = "";
+            }
+            if (callerKey != null && !rule.tryAcquire(callerKey, now)) {
+                LOGGER.warn("{}:{} 触发限流规则 {}, caller: {}", service, method, rule.name, callerKey);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param serviceConfigs 服务全限定名 -> 节点内容
+     */
+    static synchronized void update(Map<String, String> serviceConfigs) {
+        Map<String, ServiceRules> previous = rules;
+        Map<String, ServiceRules> parsed = new HashMap<>();
+        serviceConfigs.forEach((service, config) -> {
+            ServiceRules serviceRules = previous.get(service);
+            if (serviceRules == null || !serviceRules.config.equals(config)) {
+                serviceRules = index(config, parse(service, config));
+            }
+            parsed.put(service, serviceRules);
+            parsed.putIfAbsent(service.substring(service.lastIndexOf('.') + 1), serviceRules);
+        });
+        rules = parsed;
+    }
+
+    private static ServiceRules index(String config, List<FreqControlRule> serviceRules) {
+        List<FreqControlRule> anyMethod = new ArrayList<>();
+        Map<String, List<FreqControlRule>> byMethod = new HashMap<>();
+        for (FreqControlRule rule : serviceRules) {
+            if ("*".equals(rule.matchApp)) {
+                anyMethod.add(rule);
+            } else {
+                byMethod.computeIfAbsent(rule.matchApp, k -> new ArrayList<>()).add(rule);
+            }
+        }
+        Map<String, FreqControlRule[]> methods = new HashMap<>();
+        byMethod.forEach((method, methodRules) -> {
+            methodRules.addAll(anyMethod);
+            methods.put(method, methodRules.toArray(NO_RULES));
+        });
+        return new ServiceRules(config, methods, anyMethod.toArray(NO_RULES));
+    }
+
+    private static List<FreqControlRule> parse(String service, String config) {
+        List<FreqControlRule> parsed = new ArrayList<>();
+        if (config == null) {
+            return parsed;
+        }
+        String name = null;
+        Map<String, String> properties = new HashMap<>();
+        for (String line : (config + "\n[]").split("\\r?\\n")) {
+            int comment = line.indexOf('#');
+            line = (comment >= 0 ? line.substring(0, comment) : line).trim();
+            if (line.startsWith("[") && line.endsWith("]")) {
+                if (name != null) {
+                    FreqControlRule rule = toRule(service, name, properties);
+                    if (rule != null) {
+                        parsed.add(rule);
+                    }
+                }
+                name = line.substring(1, line.length() - 1).trim();
+                properties.clear();
+            } else if (line.contains("=")) {
+                int eq = line.indexOf('=');
+                properties.put(line.substring(0, eq).trim(), line.substring(eq + 1).trim());
+            }
+        }
+        LOGGER.info("服务 {} 限流规则数: {}", service, parsed.size());
+        return parsed;
+    }
+
+    private static FreqControlRule toRule(String service, String name, Map<String, String> properties) {
+        try {
+            String matchApp = properties.getOrDefault("match_app", "*");
+            FreqControlRule.RuleType ruleType = FreqControlRule.RuleType.valueOf(properties.getOrDefault("rule_type", "all"));
+            List<Long> intervals = new ArrayList<>(3);
+            List<Integer> counts = new ArrayList<>(3);
+            for (String key : new String[]{"min_interval", "mid_interval", "max_interval"}) {
+                String value = properties.get(key);
+                if (value != null) {
+                    String[] parts = value.split(",");
+                    long interval = Long.parseLong(parts[0].trim()) * 1000;
+                    int count = Integer.parseInt(parts[1].trim());
+                    if (interval <= 0 || count < 0) {
+                        throw new IllegalArgumentException(key + " = " + value);
+                    }
+                    intervals.add(interval);
+                    counts.add(count);
+                }
+            }
+            if (intervals.isEmpty()) {
+                LOGGER.warn("服务 {} 的限流规则 {} 没有配置时间窗口, 忽略", service, name);
+                return null;
+            }
+            long[] intervalMillis = new long[intervals.size()];
+            int[] maxCounts = new int[counts.size()];
+            for (int i = 0; i < intervalMillis.length; i++) {
+                intervalMillis[i] = intervals.get(i);
+                maxCounts[i] = counts.get(i);
+            }
+            return new FreqControlRule(name, matchApp, ruleType, intervalMillis, maxCounts);
+        } catch (RuntimeException e) {
+            LOGGER.error("服务 " + service + " 的限流规则 " + name + " 解析失败, 忽略", e);
+            return null;
+        }
+    }
+}
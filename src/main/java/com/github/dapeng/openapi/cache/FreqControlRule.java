@@ -0,0 +1,185 @@
+package com.github.dapeng.openapi.cache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一条限流规则及其计数器
+ * <p>
+ * 按滑动窗口计数: 估算值 = 上一个固定窗口的计数 * 上一窗口仍在滑动窗口内的比例 + 当前固定窗口的计数,
+ * 避免固定窗口在边界前后各放行一次上限(2 倍)的请求.
+ * 每个时间窗口使用两个 AtomicLong 分别记录当前和上一个固定窗口, 高 32 位为窗口序号, 低 32 位为窗口内计数, 通过 CAS 更新, 不加锁.
+ */
+final class FreqControlRule {
+
+    enum RuleType {
+        /**
+         * 所有调用者共用一个计数
+         */
+        all,
+        callerMid,
+        userId,
+        callerIp
+    }
+
+    /**
+     * 计数器 key 超出该数量时在后台清理已过期的计数器
+     */
+    private static final int MAX_KEYS = 100_000;
+
+    private static class PurgerHolder {
+        private static final ExecutorService PURGER = Executors.newSingleThreadExecutor(
+                new NamedThreadFactory("openapi-freq-purge"));
+    }
+
+    final String name;
+    /**
+     * 方法名, "*" 表示服务的所有方法
+     */
+    final String matchApp;
+    final RuleType ruleType;
+    private final long[] intervalMillis;
+    private final int[] maxCounts;
+
+    private final Map<String, Window[]> counters = new ConcurrentHashMap<>();
+    /**
+     * 同一规则同时只提交一个清理任务
+     */
+    private final AtomicBoolean purging = new AtomicBoolean(false);
+
+    private static final class Window {
+        final AtomicLong current = new AtomicLong(-1L << 32);
+        /**
+         * 当前窗口切换时由切换成功的线程写入, 短暂落后时按序号判断为无效, 只会让估算值略微偏小
+         */
+        final AtomicLong previous = new AtomicLong(-1L << 32);
+    }
+
+    FreqControlRule(String name, String matchApp, RuleType ruleType, long[] intervalMillis, int[] maxCounts) {
+        this.name = name;
+        this.matchApp = matchApp;
+        this.ruleType = ruleType;
+        this.intervalMillis = intervalMillis;
+        this.maxCounts = maxCounts;
+    }
+
+    /**
+     * 计数加一
+     * <p>
+     * 依次占用每个时间窗口, 某个窗口超出限制时撤销已占用窗口的计数, 被拒绝的请求不计入任何窗口
+     *
+     * @param callerKey 按 ruleType 取得的调用者标识
+     * @return 任一时间窗口超出限制时返回 false
+     */
+    boolean tryAcquire(String callerKey, long now) {
+        Window[] windows = counters.get(callerKey);
+        if (windows == null) {
+            if (counters.size() >= MAX_KEYS) {
+                schedulePurge();
+            }
+            windows = counters.computeIfAbsent(callerKey, k -> newWindows());
+        }
+        for (int i = 0; i < windows.length; i++) {
+            if (!tryAcquire(windows[i], now, intervalMillis[i], maxCounts[i])) {
+                for (int j = 0; j < i; j++) {
+                    release(windows[j].current, now / intervalMillis[j]);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 清理已过期的计数器, 在后台线程执行, 请求线程不做全量遍历
+     */
+    private void schedulePurge() {
+        if (purging.compareAndSet(false, true)) {
+            try {
+                PurgerHolder.PURGER.execute(() -> {
+                    try {
+                        long now = System.currentTimeMillis();
+                        counters.values().removeIf(w -> isExpired(w, now));
+                    } finally {
+                        purging.set(false);
+                    }
+                });
+            } catch (RuntimeException e) {
+                purging.set(false);
+                throw e;
+            }
+        }
+    }
+
+    private static boolean tryAcquire(Window window, long now, long interval, int maxCount) {
+        int index = (int) (now / interval);
+        //上一个固定窗口仍在滑动窗口内的比例
+        double previousWeight = 1 - (double) (now % interval) / interval;
+        while (true) {
+            long state = window.current.get();
+            int stateIndex = (int) (state >>> 32);
+            if (stateIndex != index) {
+                //切换到新窗口, 原来的当前窗口成为上一个窗口
+                long previous = stateIndex == index - 1 ? state : -1L << 32;
+                if ((int) previous * previousWeight + 1 > maxCount) {
+                    return false;
+                }
+                if (window.current.compareAndSet(state, ((long) index << 32) | 1)) {
+                    window.previous.set(previous);
+                    return true;
+                }
+            } else {
+                long previous = window.previous.get();
+                int previousCount = (int) (previous >>> 32) == index - 1 ? (int) previous : 0;
+                if (previousCount * previousWeight + (int) state + 1 > maxCount) {
+                    return false;
+                }
+                if (window.current.compareAndSet(state, state + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * 撤销一次计数, 窗口已经切换时不需要撤销
+     */
+    private static void release(AtomicLong window, long windowIndex) {
+        int index = (int) windowIndex;
+        while (true) {
+            long state = window.get();
+            if ((int) (state >>> 32) != index || (int) state <= 0) {
+                return;
+            }
+            if (window.compareAndSet(state, state - 1)) {
+                return;
+            }
+        }
+    }
+
+    private Window[] newWindows() {
+        Window[] windows = new Window[intervalMillis.length];
+        for (int i = 0; i < windows.length; i++) {
+            windows[i] = new Window();
+        }
+        return windows;
+    }
+
+    /**
+     * 所有窗口的计数都早于上一个固定窗口时, 计数器不再影响限流
+     */
+    private boolean isExpired(Window[] windows, long now) {
+        for (int i = 0; i < windows.length; i++) {
+            int index = (int) (now / intervalMillis[i]);
+            int stateIndex = (int) (windows[i].current.get() >>> 32);
+            if (stateIndex == index || stateIndex == index - 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,264 @@
+package com.github.dapeng.openapi.cache;
+
+import com.github.dapeng.client.netty.MetadataUtils;
+import com.github.dapeng.metadata.MetadataClient;
+import com.github.dapeng.openapi.utils.EnvUtil;
+import com.github.dapeng.registry.ServiceInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 服务元数据获取调度器
+ * <p>
+ * 获取失败时不再阻塞线程睡眠重试, 而是按指数退避(带随机抖动)交给调度线程延迟重新提交.
+ * 同一服务连续失败达到阈值后熔断一段时间, 熔断期间的获取直接失败, 避免一个不可用的服务占住获取线程.
+ */
+public final class MetadataFetcher {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetadataFetcher.class);
+
+    private static final int MAX_ATTEMPTS = EnvUtil.getInt("soa.openapi.metadata.fetch.attempts", 3);
+    private static final long BASE_BACKOFF_MS = EnvUtil.getInt("soa.openapi.metadata.fetch.backoff.ms", 500);
+    private static final long MAX_BACKOFF_MS = 10_000;
+    /**
+     * 连续失败多少次后熔断
+     */
+    private static final int CIRCUIT_FAILURE_THRESHOLD = EnvUtil.getInt("soa.openapi.metadata.circuit.failures", 5);
+    /**
+     * 熔断持续时间, 之后放行一次探测请求
+     */
+    private static final long CIRCUIT_OPEN_MS = EnvUtil.getInt("soa.openapi.metadata.circuit.open.ms", 30_000);
+    /**
+     * 直连模式: 直接向zk中注册的实例获取元数据(连接由 {@link MetadataUtils} 按 host:port 复用), 不经过客户端的服务发现
+     */
+    private static final boolean DIRECT_MODE = Boolean.parseBoolean(EnvUtil.get("soa.openapi.metadata.direct", "false"));
+    /**
+     * 直连模式下, 请求超过该时间(毫秒)未返回时向同版本的另一个实例再发一次请求, 取先成功的结果. 小于等于 0 时不对冲
+     */
+    private static final long HEDGE_DELAY_MS = EnvUtil.getInt("soa.openapi.metadata.hedge.ms", 200);
+
+    private static final int FETCH_THREADS = Math.max(Runtime.getRuntime().availableProcessors(), 4);
+
+    private static final ExecutorService FETCH_EXECUTOR = Executors.newFixedThreadPool(
+            FETCH_THREADS, new NamedThreadFactory("openapi-metadata-fetch"));
+
+    /**
+     * 直连请求(主请求和对冲请求)的执行线程, 固定为获取线程数的两倍, 每个获取最多同时占用两个.
+     * 不复用 FETCH_EXECUTOR: 获取线程会阻塞等待这里的请求, 同一个线程池中排队会互相等待
+     */
+    private static final ExecutorService HEDGE_EXECUTOR = Executors.newFixedThreadPool(
+            FETCH_THREADS << 1, new NamedThreadFactory("openapi-metadata-hedge"));
+
+    private static final ScheduledExecutorService RETRY_SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+            new NamedThreadFactory("openapi-metadata-retry"));
+
+    private static final Map<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+    private static final AtomicInteger inFlight = new AtomicInteger();
+    private static final LongAdder retries = new LongAdder();
+    private static final LongAdder hedges = new LongAdder();
+
+    private MetadataFetcher() {
+    }
+
+    /**
+     * @return 正在进行中的元数据请求数
+     */
+    public static int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return 累计的重试次数
+     */
+    public static long getRetryCount() {
+        return retries.sum();
+    }
+
+    /**
+     * @return 累计发出的对冲请求数
+     */
+    public static long getHedgeCount() {
+        return hedges.sum();
+    }
+
+    /**
+     * 异步获取服务元数据
+     *
+     * @return 元数据原文; 重试次数用完或者服务熔断时异常结束
+     */
+    static CompletableFuture<String> fetch(String serviceName, ServiceInfo info) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        FETCH_EXECUTOR.execute(() -> attempt(serviceName, info, 1, result));
+        return result;
+    }
+
+    private static void attempt(String serviceName, ServiceInfo info, int attempt, CompletableFuture<String> result) {
+        String version = info.versionName;
+        Circuit circuit = circuits.computeIfAbsent(serviceName, k -> new Circuit());
+        if (!circuit.allowRequest()) {
+            result.completeExceptionally(new IllegalStateException(serviceName + " metadata fetch circuit is open"));
+            return;
+        }
+
+        inFlight.incrementAndGet();
+        try {
+            LOGGER.info("begin to fetch metadataClient {}:{}, attempt {}", serviceName, version, attempt);
+            String metadata;
+            if (DIRECT_MODE) {
+                //直连 zk 中注册的实例(命令行等不启动 dapeng 客户端服务发现的场景), 超时后向同版本的另一个实例对冲
+                metadata = fetchDirect(serviceName, info);
+            } else {
+                metadata = new MetadataClient(serviceName, version).getServiceMetadata();
+            }
+
+            circuit.onSuccess();
+            LOGGER.info("{}:{} metadata获取成功，尝试次数 {}", serviceName, version, attempt);
+            result.complete(metadata);
+        } catch (Exception e) {
+            circuit.onFailure();
+            LOGGER.error("{}:{} metadata获取出错,已尝试 {} 次", serviceName, version, attempt);
+            LOGGER.error(e.getMessage(), e);
+            if (attempt >= MAX_ATTEMPTS || circuit.isOpen()) {
+                result.completeExceptionally(e);
+            } else {
+                retries.increment();
+                long delay = backoff(attempt);
+                RETRY_SCHEDULER.schedule(() -> FETCH_EXECUTOR.execute(() -> attempt(serviceName, info, attempt + 1, result)),
+                        delay, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * 直连获取. 同一版本还有其他实例时, 请求超过 HEDGE_DELAY_MS 未返回, 或者在此之前已经失败, 就向其中一个再发一次请求,
+     * 避免单个实例(例如正在GC或者已经下线)拖慢整个服务的加载. 两个请求都失败时抛出后失败的异常
+     */
+    private static String fetchDirect(String serviceName, ServiceInfo info) throws Exception {
+        ServiceInfo alternate = HEDGE_DELAY_MS > 0 ? alternateOf(serviceName, info) : null;
+        if (alternate == null) {
+            return MetadataUtils.getRomoteServiceMetadata(info.host, info.port, serviceName, info.versionName);
+        }
+
+        CompletableFuture<String> result = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(2);
+        AtomicBoolean hedged = new AtomicBoolean(false);
+        Runnable hedge = () -> {
+            if (hedged.compareAndSet(false, true)) {
+                if (result.isDone()) {
+                    pending.decrementAndGet();
+                    return;
+                }
+                hedges.increment();
+                LOGGER.info("{}:{} metadata {}:{} 失败或超过 {} ms 未返回, 对冲请求 {}:{}", serviceName, info.versionName,
+                        info.host, info.port, HEDGE_DELAY_MS, alternate.host, alternate.port);
+                HEDGE_EXECUTOR.execute(() -> fetchDirect(serviceName, alternate, result, pending, null));
+            }
+        };
+        HEDGE_EXECUTOR.execute(() -> fetchDirect(serviceName, info, result, pending, hedge));
+        ScheduledFuture<?> timer = RETRY_SCHEDULER.schedule(hedge, HEDGE_DELAY_MS, TimeUnit.MILLISECONDS);
+
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+            timer.cancel(false);
+        }
+    }
+
+    /**
+     * @param onFailure 失败且另一个请求还未结束时执行, 主请求用它立即发出对冲请求
+     */
+    private static void fetchDirect(String serviceName, ServiceInfo info, CompletableFuture<String> result,
+                                    AtomicInteger pending, Runnable onFailure) {
+        try {
+            result.complete(MetadataUtils.getRomoteServiceMetadata(info.host, info.port, serviceName, info.versionName));
+        } catch (Exception e) {
+            LOGGER.warn("{}:{} metadata {}:{} 获取失败: {}", serviceName, info.versionName, info.host, info.port, e.getMessage());
+            if (pending.decrementAndGet() == 0) {
+                result.completeExceptionally(e);
+            } else if (onFailure != null) {
+                onFailure.run();
+            }
+        }
+    }
+
+    /**
+     * @return 同版本的另一个实例, 没有时返回 null
+     */
+    private static ServiceInfo alternateOf(String serviceName, ServiceInfo info) {
+        List<ServiceInfo> instances = ZookeeperClient.getServices().get(serviceName);
+        if (instances == null) {
+            return null;
+        }
+        List<ServiceInfo> alternates = new ArrayList<>(instances.size());
+        for (ServiceInfo instance : instances) {
+            if (instance.versionName.equals(info.versionName) && !instance.equalTo(info)) {
+                alternates.add(instance);
+            }
+        }
+        return alternates.isEmpty() ? null : alternates.get(ThreadLocalRandom.current().nextInt(alternates.size()));
+    }
+
+    /**
+     * 指数退避, 在 [delay/2, delay] 之间随机抖动, 避免大量服务同时重试
+     */
+    private static long backoff(int attempt) {
+        long delay = Math.min(BASE_BACKOFF_MS << Math.min(attempt - 1, 16), MAX_BACKOFF_MS);
+        return ThreadLocalRandom.current().nextLong(delay / 2, delay + 1);
+    }
+
+    /**
+     * 单个服务的熔断状态
+     */
+    private static class Circuit {
+        /**
+         * 半开状态: 已放行一个探测请求, 探测结束前拒绝其他请求
+         */
+        private static final long HALF_OPEN = -1;
+
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        /**
+         * 0: 关闭; HALF_OPEN: 半开; 其他: 熔断截止时间
+         */
+        private final AtomicLong openUntil = new AtomicLong();
+
+        boolean allowRequest() {
+            long until = openUntil.get();
+            if (until == 0) {
+                return true;
+            }
+            if (until == HALF_OPEN) {
+                return false;
+            }
+            //熔断时间已过, 只有把状态切换为半开的一个请求作为探测放行, 探测成功关闭熔断, 失败重新熔断
+            return System.currentTimeMillis() >= until && openUntil.compareAndSet(until, HALF_OPEN);
+        }
+
+        boolean isOpen() {
+            return openUntil.get() != 0;
+        }
+
+        void onSuccess() {
+            consecutiveFailures.set(0);
+            openUntil.set(0);
+        }
+
+        void onFailure() {
+            if (consecutiveFailures.incrementAndGet() >= CIRCUIT_FAILURE_THRESHOLD || openUntil.get() == HALF_OPEN) {
+                openUntil.set(System.currentTimeMillis() + CIRCUIT_OPEN_MS);
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.github.dapeng.openapi.cache;
+
+import com.github.dapeng.core.metadata.Service;
+import com.github.dapeng.json.OptimizedMetadata;
+import com.github.dapeng.openapi.utils.EnvUtil;
+
+import javax.xml.bind.JAXBException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 元数据解析结果缓存
+ * <p>
+ * 以 元数据原文的摘要 + zk注册版本 作为key. 服务返回的元数据与之前完全一致时, 直接复用已有的
+ * {@link OptimizedMetadata.OptimizedService}, 不再重复执行 JAXB 解析和 OptimizedService 构建.
+ * 容量有限, 超出后按 LRU 淘汰.
+ */
+final class MetadataParseCache {
+
+    private static final int MAX_SIZE = EnvUtil.getInt("soa.openapi.metadata.cache.size", 256);
+
+    private static final Map<String, ParsedMetadata> CACHE = new LinkedHashMap<String, ParsedMetadata>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ParsedMetadata> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    static final class ParsedMetadata {
+        final Service service;
+        final OptimizedMetadata.OptimizedService optimizedService;
+
+        ParsedMetadata(Service service, OptimizedMetadata.OptimizedService optimizedService) {
+            this.service = service;
+            this.optimizedService = optimizedService;
+        }
+    }
+
+    private MetadataParseCache() {
+    }
+
+    /**
+     * 解析元数据, 命中缓存时直接返回之前的解析结果
+     *
+     * @param metadata 元数据xml原文
+     * @param version  zk注册的服务版本, 服务版本以zk注册的版本为主
+     */
+    static ParsedMetadata parse(String metadata, String version) throws JAXBException {
+        String key = digest(metadata) + ":" + version;
+        synchronized (CACHE) {
+            ParsedMetadata cached = CACHE.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        Service serviceData = MetadataParser.parse(metadata);
+        if (!serviceData.getMeta().version.equals(version)) {
+            serviceData.getMeta().setVersion(version);
+        }
+        ParsedMetadata parsed = new ParsedMetadata(serviceData, new OptimizedMetadata.OptimizedService(serviceData));
+
+        synchronized (CACHE) {
+            CACHE.put(key, parsed);
+        }
+        return parsed;
+    }
+
+    /**
+     * 服务下线后移除其解析结果, 不必等 LRU 淘汰
+     *
+     * @param fullServiceName 服务全限定名
+     */
+    static void removeService(String fullServiceName) {
+        synchronized (CACHE) {
+            CACHE.values().removeIf(parsed -> fullServiceName.equals(parsed.service.getNamespace() + "." + parsed.service.getName()));
+        }
+    }
+
+    static void clear() {
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+    }
+
+    private static String digest(String metadata) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(md.digest(metadata.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 是 JDK 必须支持的算法
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.github.dapeng.openapi.cache;
+
+import com.github.dapeng.core.metadata.Service;
+import com.github.dapeng.openapi.utils.EnvUtil;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.transform.stream.StreamSource;
+import java.io.StringReader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 服务元数据解析器
+ * <p>
+ * {@link javax.xml.bind.JAXB#unmarshal} 每次调用都要查找(或新建) JAXBContext 并创建 Unmarshaller.
+ * 这里只创建一次线程安全的 JAXBContext, Unmarshaller 非线程安全, 用完归还到一个有界的池中复用.
+ */
+public final class MetadataParser {
+
+    private static final int POOL_SIZE = EnvUtil.getInt("soa.openapi.metadata.parser.pool",
+            Math.max(Runtime.getRuntime().availableProcessors(), 4));
+
+    private static final BlockingQueue<Unmarshaller> UNMARSHALLERS = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private MetadataParser() {
+    }
+
+    private static class ContextHolder {
+        private static final JAXBContext CONTEXT = createContext();
+
+        private static JAXBContext createContext() {
+            try {
+                return JAXBContext.newInstance(Service.class);
+            } catch (JAXBException e) {
+                throw new IllegalStateException("create JAXBContext for Service failed", e);
+            }
+        }
+    }
+
+    /**
+     * 将元数据xml解析为 {@link Service}
+     *
+     * @param metadata 元数据xml原文
+     * @throws JAXBException xml 无法解析
+     */
+    public static Service parse(String metadata) throws JAXBException {
+        Unmarshaller unmarshaller = UNMARSHALLERS.poll();
+        if (unmarshaller == null) {
+            unmarshaller = ContextHolder.CONTEXT.createUnmarshaller();
+        }
+        try (StringReader reader = new StringReader(metadata)) {
+            return unmarshaller.unmarshal(new StreamSource(reader), Service.class).getValue();
+        } finally {
+            //池满时直接丢弃
+            UNMARSHALLERS.offer(unmarshaller);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.github.dapeng.openapi.cache;
+
+import com.github.dapeng.openapi.utils.EnvUtil;
+import com.github.dapeng.registry.ServiceInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 服务元数据本地快照
+ * <p>
+ * 配置 soa.openapi.metadata.snapshot(快照文件路径) 后启用. 已加载的元数据原文会以 gzip 压缩的二进制格式写入本地文件,
+ * 网关启动时先从快照恢复, 再由 zk 在后台校验, 不必等所有服务的元数据都获取完成才能对外服务.
+ * <p>
+ * 文件格式: magic(int) | formatVersion(int) | count(int) | count * [serviceName | version | host | port(int) | metadata]
+ */
+final class MetadataSnapshotStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetadataSnapshotStore.class);
+
+    private static final int MAGIC = 0x44504D53;
+    private static final int FORMAT_VERSION = 1;
+    /**
+     * 变更后延迟写盘, 合并短时间内的多次变更
+     */
+    private static final long FLUSH_DELAY_MS = 3000;
+
+    private static final String SNAPSHOT_FILE = EnvUtil.get("soa.openapi.metadata.snapshot", null);
+
+    /**
+     * serviceName:version -> 快照记录
+     */
+    private static final Map<String, Record> records = new ConcurrentHashMap<>();
+
+    private static final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    static final class Record {
+        final String serviceName;
+        final String version;
+        final String host;
+        final int port;
+        final String metadata;
+
+        Record(String serviceName, String version, String host, int port, String metadata) {
+            this.serviceName = serviceName;
+            this.version = version;
+            this.host = host;
+            this.port = port;
+            this.metadata = metadata;
+        }
+    }
+
+    private static class FlusherHolder {
+        private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("openapi-metadata-snapshot"));
+    }
+
+    private MetadataSnapshotStore() {
+    }
+
+    static boolean isEnabled() {
+        return SNAPSHOT_FILE != null && !SNAPSHOT_FILE.isEmpty();
+    }
+
+    static void record(String serviceName, ServiceInfo info, String metadata) {
+        if (!isEnabled()) {
+            return;
+        }
+        records.put(serviceName + ":" + info.versionName,
+                new Record(serviceName, info.versionName, info.host, info.port, metadata));
+        scheduleFlush();
+    }
+
+    static void remove(String serviceName, String version) {
+        if (isEnabled() && records.remove(serviceName + ":" + version) != null) {
+            scheduleFlush();
+        }
+    }
+
+    static void removeService(String serviceName) {
+        if (isEnabled() && records.keySet().removeIf(key -> key.startsWith(serviceName + ":"))) {
+            scheduleFlush();
+        }
+    }
+
+    static void clear() {
+        if (isEnabled()) {
+            records.clear();
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * 读取本地快照, 文件不存在或者损坏时返回空列表
+     */
+    static List<Record> load() {
+        if (!isEnabled()) {
+            return Collections.emptyList();
+        }
+        Path path = Paths.get(SNAPSHOT_FILE);
+        if (!Files.exists(path)) {
+            LOGGER.info("metadata snapshot {} 不存在，跳过恢复", path);
+            return Collections.emptyList();
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(path))))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                LOGGER.warn("metadata snapshot {} 格式不匹配，跳过恢复", path);
+                return Collections.emptyList();
+            }
+            int count = in.readInt();
+            List<Record> loaded = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String serviceName = in.readUTF();
+                String version = in.readUTF();
+                String host = in.readUTF();
+                int port = in.readInt();
+                byte[] metadata = new byte[in.readInt()];
+                in.readFully(metadata);
+                loaded.add(new Record(serviceName, version, host, port, new String(metadata, StandardCharsets.UTF_8)));
+            }
+            LOGGER.info("metadata snapshot {} 读取成功, 记录数: {}", path, count);
+            return loaded;
+        } catch (IOException e) {
+            LOGGER.error("metadata snapshot " + path + " 读取失败，跳过恢复", e);
+            return Collections.emptyList();
+        }
+    }
+
+    private static void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            FlusherHolder.FLUSHER.schedule(MetadataSnapshotStore::flush, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 先写临时文件再替换, 避免进程中途退出留下不完整的快照
+     */
+    private static void flush() {
+        flushScheduled.set(false);
+        List<Record> current = new ArrayList<>(records.values());
+        Path path = Paths.get(SNAPSHOT_FILE);
+        Path tmp = Paths.get(SNAPSHOT_FILE + ".tmp");
+        try {
+            Path parent = path.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tmp))))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(current.size());
+                for (Record record : current) {
+                    out.writeUTF(record.serviceName);
+                    out.writeUTF(record.version);
+                    out.writeUTF(record.host);
+                    out.writeInt(record.port);
+                    byte[] metadata = record.metadata.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(metadata.length);
+                    out.write(metadata);
+                }
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.info("metadata snapshot {} 写入成功, 记录数: {}", path, current.size());
+        } catch (IOException e) {
+            LOGGER.error("metadata snapshot " + path + " 写入失败", e);
+        }
+    }
+}
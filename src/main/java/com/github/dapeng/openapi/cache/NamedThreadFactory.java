@@ -0,0 +1,23 @@
+package com.github.dapeng.openapi.cache;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 以 prefix-序号 命名的守护线程工厂, 后台加载线程不阻止JVM退出
+ */
+class NamedThreadFactory implements ThreadFactory {
+    private final String prefix;
+    private final AtomicInteger index = new AtomicInteger();
+
+    NamedThreadFactory(String prefix) {
+        this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, prefix + "-" + index.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,264 @@
+package com.github.dapeng.openapi.cache;
+
+import com.github.dapeng.core.helper.IPUtils;
+import com.github.dapeng.registry.ServiceInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 网关路由规则, 来自 /soa/config/routes/服务全限定名, 由 {@link ZookeeperClient} 监听并在变化时整体替换
+ * <p>
+ * 规则在加载时编译, 并按 服务 -> 方法名 预先筛选出可能匹配的规则(保持原有顺序), 请求时只需依次判断少量规则, 第一条匹配的规则生效.
+ *
+ * @see RouteRule
+ */
+public final class RouteCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RouteCache.class);
+
+    private static final RouteRule[] NO_RULES = new RouteRule[0];
+
+    /**
+     * 服务名(全限定名 与 SimpleName) -> 编译后的路由
+     */
+    private static volatile Map<String, ServiceRoutes> routes = Collections.emptyMap();
+
+    /**
+     * 实例 host -> int 形式的ip, 避免每次请求对每个实例重复解析
+     */
+    private static final Map<String, Integer> hostIps = new ConcurrentHashMap<>();
+    /**
+     * hostIps 超出该数量时清空(实例频繁上下线时 host 会不断变化)
+     */
+    private static final int MAX_HOSTS = 10_000;
+
+    private static final class ServiceRoutes {
+        /**
+         * 方法名 -> 可能匹配该方法的规则
+         */
+        final Map<String, RouteRule[]> methods;
+        /**
+         * 不限定固定方法名的规则, 用于 methods 中没有的方法
+         */
+        final RouteRule[] others;
+
+        ServiceRoutes(Map<String, RouteRule[]> methods, RouteRule[] others) {
+            this.methods = methods;
+            this.others = others;
+        }
+    }
+
+    private RouteCache() {
+    }
+
+    public static boolean hasRoutes(String service) {
+        return routes.containsKey(service);
+    }
+
+    /**
+     * 按路由规则筛选实例
+     *
+     * @param candidates 可用实例
+     * @return 没有匹配的规则时原样返回 candidates; 否则返回满足规则目标的实例(可能为空)
+     */
+    public static List<ServiceInfo> route(String service, String method, Long userId, String callerMid, List<ServiceInfo> candidates) {
+        ServiceRoutes serviceRoutes = routes.get(service);
+        if (serviceRoutes == null) {
+            return candidates;
+        }
+        RouteRule[] rules = serviceRoutes.methods.get(method);
+        if (rules == null) {
+            rules = serviceRoutes.others;
+        }
+        for (RouteRule rule : rules) {
+            if (rule.matches(method, userId, callerMid)) {
+                List<ServiceInfo> routed = new ArrayList<>(candidates.size());
+                for (ServiceInfo candidate : candidates) {
+                    if (rule.accepts(ipOf(candidate.host))) {
+                        routed.add(candidate);
+                    }
+                }
+                return routed;
+            }
+        }
+        return candidates;
+    }
+
+    private static int ipOf(String host) {
+        Integer ip = hostIps.get(host);
+        if (ip == null) {
+            if (hostIps.size() >= MAX_HOSTS) {
+                hostIps.clear();
+            }
+            ip = IPUtils.transferIp(host);
+            hostIps.put(host, ip);
+        }
+        return ip;
+    }
+
+    /**
+     * @param serviceConfigs 服务全限定名 -> 节点内容
+     */
+    static void update(Map<String, String> serviceConfigs) {
+        Map<String, ServiceRoutes> compiled = new HashMap<>();
+        serviceConfigs.forEach((service, config) -> {
+            ServiceRoutes serviceRoutes = index(compile(service, config));
+            compiled.put(service, serviceRoutes);
+            compiled.putIfAbsent(service.substring(service.lastIndexOf('.') + 1), serviceRoutes);
+        });
+        routes = compiled;
+    }
+
+    private static ServiceRoutes index(List<RouteRule> rules) {
+        List<RouteRule> others = new ArrayList<>();
+        Set<String> methodNames = new HashSet<>();
+        for (RouteRule rule : rules) {
+            Set<String> exact = rule.exactMethods();
+            if (exact == null) {
+                others.add(rule);
+            } else {
+                methodNames.addAll(exact);
+            }
+        }
+        Map<String, RouteRule[]> methods = new HashMap<>();
+        for (String methodName : methodNames) {
+            List<RouteRule> applicable = new ArrayList<>();
+            for (RouteRule rule : rules) {
+                Set<String> exact = rule.exactMethods();
+                if (exact == null || exact.contains(methodName)) {
+                    applicable.add(rule);
+                }
+            }
+            methods.put(methodName, applicable.toArray(NO_RULES));
+        }
+        return new ServiceRoutes(methods, others.toArray(NO_RULES));
+    }
+
+    private static List<RouteRule> compile(String service, String config) {
+        List<RouteRule> rules = new ArrayList<>();
+        for (String line : config.split("\\r?\\n")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            try {
+                rules.add(compileRule(line));
+            } catch (RuntimeException e) {
+                LOGGER.error("服务 " + service + " 的路由规则解析失败, 忽略: " + line, e);
+            }
+        }
+        LOGGER.info("服务 {} 路由规则数: {}", service, rules.size());
+        return rules;
+    }
+
+    private static RouteRule compileRule(String line) {
+        int arrow = line.lastIndexOf("=>");
+        if (arrow < 0) {
+            throw new IllegalArgumentException("missing =>");
+        }
+        String left = line.substring(0, arrow).trim();
+        List<RouteRule.Condition> conditions = new ArrayList<>();
+        if (!"otherwise".equals(left)) {
+            for (String condition : splitOutsideQuotes(left, ';')) {
+                conditions.add(compileCondition(condition.trim()));
+            }
+        }
+        List<RouteRule.IpTarget> targets = new ArrayList<>();
+        for (String target : splitOutsideQuotes(line.substring(arrow + 2), ',')) {
+            targets.add(compileTarget(target.trim()));
+        }
+        return new RouteRule(conditions, targets);
+    }
+
+    private static RouteRule.Condition compileCondition(String condition) {
+        String[] words = condition.split("\\s+", 2);
+        RouteRule.Field field = RouteRule.Field.valueOf(words[0]);
+        String rest = words.length > 1 ? words[1].trim() : "";
+        boolean negate = false;
+        if (rest.startsWith("not match")) {
+            negate = true;
+            rest = rest.substring("not match".length());
+        } else if (rest.startsWith("match")) {
+            rest = rest.substring("match".length());
+        } else {
+            throw new IllegalArgumentException("expect match: " + condition);
+        }
+        List<RouteRule.Matcher> matchers = new ArrayList<>();
+        for (String value : splitOutsideQuotes(rest, ',')) {
+            matchers.add(compileValue(value.trim()));
+        }
+        return new RouteRule.Condition(field, negate, matchers);
+    }
+
+    private static RouteRule.Matcher compileValue(String value) {
+        if (value.startsWith("r\"")) {
+            return RouteRule.Matcher.regex(unquote(value.substring(1)));
+        }
+        if (value.startsWith("%\"")) {
+            // Nn+a 或 Nn+a..b
+            String mod = unquote(value.substring(1));
+            int n = mod.indexOf("n+");
+            long modulus = Long.parseLong(mod.substring(0, n).trim());
+            long[] range = parseRange(mod.substring(n + 2));
+            return RouteRule.Matcher.mod(modulus, range[0], range[1]);
+        }
+        if (value.startsWith("\"")) {
+            return RouteRule.Matcher.literal(unquote(value));
+        }
+        long[] range = parseRange(value);
+        return RouteRule.Matcher.range(range[0], range[1]);
+    }
+
+    private static long[] parseRange(String value) {
+        int dots = value.indexOf("..");
+        if (dots < 0) {
+            long n = Long.parseLong(value.trim());
+            return new long[]{n, n};
+        }
+        return new long[]{Long.parseLong(value.substring(0, dots).trim()), Long.parseLong(value.substring(dots + 2).trim())};
+    }
+
+    private static RouteRule.IpTarget compileTarget(String target) {
+        boolean exclude = target.startsWith("~");
+        if (exclude) {
+            target = target.substring(1).trim();
+        }
+        if (!target.startsWith("ip\"")) {
+            throw new IllegalArgumentException("unsupported target: " + target);
+        }
+        String address = unquote(target.substring(2));
+        int slash = address.indexOf('/');
+        int maskBits = slash < 0 ? 32 : Integer.parseInt(address.substring(slash + 1).trim());
+        String ip = slash < 0 ? address : address.substring(0, slash);
+        if (maskBits < 0 || maskBits > 32) {
+            throw new IllegalArgumentException("invalid mask: " + address);
+        }
+        return new RouteRule.IpTarget(exclude, IPUtils.transferIp(ip.trim()), maskBits);
+    }
+
+    private static String unquote(String quoted) {
+        if (quoted.length() < 2 || quoted.charAt(0) != '"' || quoted.charAt(quoted.length() - 1) != '"') {
+            throw new IllegalArgumentException("expect quoted string: " + quoted);
+        }
+        return quoted.substring(1, quoted.length() - 1);
+    }
+
+    private static List<String> splitOutsideQuotes(String value, char separator) {
+        List<String> parts = new ArrayList<>();
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == separator && !quoted) {
+                parts.add(value.substring(start, i));
+                start = i + 1;
+            }
+        }
+        parts.add(value.substring(start));
+        return parts;
+    }
+}
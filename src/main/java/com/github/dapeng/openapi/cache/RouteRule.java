@@ -0,0 +1,206 @@
+package com.github.dapeng.openapi.cache;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * 一条编译后的路由规则: 所有条件都满足时, 调用目标限定为匹配 targets 的实例
+ * <p>
+ * 支持 dapeng 路由语法的以下子集, 每行一条规则:
+ * <pre>
+ * method match "getFoo", "getBar" => ip"192.168.1.101"
+ * method match r"set.*" ; userId match 100..200, %"1024n+0..9" => ip"192.168.1.0/24"
+ * callerMid not match "api/test" => ~ip"192.168.1.103"
+ * otherwise => ip"192.168.1.102"
+ * </pre>
+ * 条件字段: method, userId, callerMid; 值: 字符串 "x", 正则 r"x", 整数 n, 区间 a..b, 取模 %"Nn+a" 或 %"Nn+a..b".
+ * 目标: ip"a.b.c.d", ip"a.b.c.d/掩码位数", 前缀 ~ 表示排除.
+ */
+final class RouteRule {
+
+    final List<Condition> conditions;
+    private final List<IpTarget> targets;
+
+    RouteRule(List<Condition> conditions, List<IpTarget> targets) {
+        this.conditions = conditions;
+        this.targets = targets;
+    }
+
+    boolean matches(String method, Long userId, String callerMid) {
+        for (Condition condition : conditions) {
+            if (!condition.matches(method, userId, callerMid)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 实例是否满足路由目标: 满足任一非排除目标, 且不满足任何排除目标
+     */
+    boolean accepts(int ip) {
+        boolean included = false;
+        boolean hasInclude = false;
+        for (IpTarget target : targets) {
+            if (target.exclude) {
+                if (target.contains(ip)) {
+                    return false;
+                }
+            } else {
+                hasInclude = true;
+                included |= target.contains(ip);
+            }
+        }
+        return included || !hasInclude;
+    }
+
+    /**
+     * @return 只匹配固定方法名的规则返回这些方法名, 否则返回 null
+     */
+    Set<String> exactMethods() {
+        for (Condition condition : conditions) {
+            if (condition.field == Field.method && !condition.negate) {
+                Set<String> methods = condition.exactValues();
+                if (methods != null) {
+                    return methods;
+                }
+            }
+        }
+        return null;
+    }
+
+    enum Field {
+        method, userId, callerMid
+    }
+
+    static final class Condition {
+        final Field field;
+        final boolean negate;
+        final List<Matcher> matchers;
+
+        Condition(Field field, boolean negate, List<Matcher> matchers) {
+            this.field = field;
+            this.negate = negate;
+            this.matchers = matchers;
+        }
+
+        boolean matches(String method, Long userId, String callerMid) {
+            boolean matched = false;
+            switch (field) {
+                case method:
+                    matched = matchString(method);
+                    break;
+                case callerMid:
+                    matched = callerMid != null && matchString(callerMid);
+                    break;
+                case userId:
+                    if (userId != null) {
+                        for (Matcher matcher : matchers) {
+                            if (matcher.matchLong(userId)) {
+                                matched = true;
+                                break;
+                            }
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+            return matched != negate;
+        }
+
+        private boolean matchString(String value) {
+            for (Matcher matcher : matchers) {
+                if (matcher.matchString(value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private Set<String> exactValues() {
+            Set<String> values = new HashSet<>();
+            for (Matcher matcher : matchers) {
+                if (matcher.literal == null) {
+                    return null;
+                }
+                values.add(matcher.literal);
+            }
+            return values;
+        }
+    }
+
+    /**
+     * 单个匹配值
+     */
+    static final class Matcher {
+        final String literal;
+        private final Pattern pattern;
+        private final long min;
+        private final long max;
+        private final long modulus;
+
+        private Matcher(String literal, Pattern pattern, long min, long max, long modulus) {
+            this.literal = literal;
+            this.pattern = pattern;
+            this.min = min;
+            this.max = max;
+            this.modulus = modulus;
+        }
+
+        static Matcher literal(String value) {
+            return new Matcher(value, null, 0, 0, 0);
+        }
+
+        static Matcher regex(String regex) {
+            return new Matcher(null, Pattern.compile(regex), 0, 0, 0);
+        }
+
+        static Matcher range(long min, long max) {
+            return new Matcher(null, null, min, max, 0);
+        }
+
+        static Matcher mod(long modulus, long min, long max) {
+            return new Matcher(null, null, min, max, modulus);
+        }
+
+        boolean matchString(String value) {
+            if (literal != null) {
+                return literal.equals(value);
+            }
+            if (pattern != null) {
+                return pattern.matcher(value).matches();
+            }
+            return false;
+        }
+
+        boolean matchLong(long value) {
+            if (literal != null) {
+                return literal.equals(Long.toString(value));
+            }
+            if (pattern != null) {
+                return false;
+            }
+            long v = modulus > 0 ? Math.floorMod(value, modulus) : value;
+            return v >= min && v <= max;
+        }
+    }
+
+    static final class IpTarget {
+        final boolean exclude;
+        private final int network;
+        private final int mask;
+
+        IpTarget(boolean exclude, int ip, int maskBits) {
+            this.exclude = exclude;
+            this.mask = maskBits == 0 ? 0 : -1 << (32 - maskBits);
+            this.network = ip & mask;
+        }
+
+        boolean contains(int ip) {
+            return (ip & mask) == network;
+        }
+    }
+}
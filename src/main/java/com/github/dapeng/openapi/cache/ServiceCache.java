@@ -1,18 +1,18 @@
 package com.github.dapeng.openapi.cache;
 
 
-import com.github.dapeng.core.SoaException;
 import com.github.dapeng.core.metadata.*;
 import com.github.dapeng.json.OptimizedMetadata;
-import com.github.dapeng.metadata.MetadataClient;
+import com.github.dapeng.openapi.utils.Constants;
+import com.github.dapeng.openapi.utils.EnvUtil;
 import com.github.dapeng.registry.ServiceInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.xml.bind.JAXB;
-import java.io.StringReader;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * Service Cache
@@ -25,46 +25,150 @@ public class ServiceCache {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ServiceCache.class);
     /**
-     * 以服务的SimpleName和version拼接作为key，保存服务元数据的map
-     * etc. AdminSkuPriceService:1.0.0 -> 元信息
+     * 当前发布的服务元数据快照, 包含:
+     * <ul>
+     * <li>以服务的SimpleName和version拼接作为key，保存服务元数据的map. etc. AdminSkuPriceService:1.0.0 -> 元信息</li>
+     * <li>以服务的全限定名和version拼接作为key，保存服务元数据的map. etc. com.today.api.skuprice.service.AdminSkuPriceService:1.0.0 -> 元信息</li>
+     * <li>以服务的全限定名和 version 拼接作为key，保存服务的实例信息. etc. com.today.api.skuprice.service.AdminSkuPriceService:1.0.0  -> ServiceInfo 实例信息</li>
+     * </ul>
+     * 读取无锁, 修改通过 {@link #update(Consumer)} 在副本上完成后整体替换
      */
-    private static Map<String, OptimizedMetadata.OptimizedService> services = Collections.synchronizedMap(new TreeMap<>());
+    private static volatile ServiceRegistrySnapshot snapshot = ServiceRegistrySnapshot.EMPTY;
     /**
-     * 以服务的全限定名和 version 拼接作为key，保存服务的实例信息
-     * etc. com.today.api.skuprice.service.AdminSkuPriceService:1.0.0  -> ServiceInfo 实例信息
+     * 串行化快照的修改, 请求线程不会竞争该锁
      */
-    private static Map<String, ServiceInfo> serverInfoMap = Collections.synchronizedMap(new TreeMap<>());
+    private static final Object UPDATE_LOCK = new Object();
     /**
-     * 以服务的全限定名和version拼接作为key，保存服务元数据的map
-     * etc. AdminSkuPriceService:1.0.0 -> 元信息
+     * 同一服务的多个版本同时获取元数据的最大并发数
      */
-    private static Map<String, OptimizedMetadata.OptimizedService> fullNameService = Collections.synchronizedMap(new TreeMap<>());
+    private static final int FETCH_CONCURRENCY_PER_SERVICE = Math.max(1, EnvUtil.getInt("soa.openapi.metadata.fetch.per.service", 2));
+    /**
+     * 从本地快照恢复、尚未从运行实例重新获取校验过的版本(服务全限定名:version).
+     * 实例可能在相同地址和版本下重新发布了新的元数据, 连接zk后无论实例是否变化都会重新获取一次
+     */
+    private static final Set<String> unverifiedVersions = ConcurrentHashMap.newKeySet();
+    /**
+     * 按需加载模式: 启动时只跟踪实例, 服务第一次被请求时才获取元数据
+     */
+    private static volatile boolean lazyLoading = false;
+    /**
+     * 按需加载时提交服务同步, 由 ZookeeperClient 提供, 与zk事件触发的同步共用同一个按服务串行的队列
+     */
+    private static volatile Function<String, CompletableFuture<Void>> lazySync;
+    /**
+     * 按需加载时, 请求线程等待元数据加载的最长时间
+     */
+    private static final long LAZY_WAIT_MS = EnvUtil.getInt("soa.openapi.metadata.lazy.wait.ms", 3000);
+    /**
+     * 按需加载模式下已被请求过的服务(全限定名), 之后随zk变化主动刷新
+     */
+    private static final Set<String> demandedServices = ConcurrentHashMap.newKeySet();
+    /**
+     * 正在按需加载的服务, 同一服务的并发请求共享一次加载
+     */
+    private static final Map<String, CompletableFuture<Void>> lazyLoads = new ConcurrentHashMap<>();
     /**
      * 只针对文档站点进行使用。url展示
      */
     public static Map<String, String> urlMappings = new ConcurrentHashMap<>();
+    /**
+     * urlMappings 的反向索引: 服务SimpleName -> 该服务写入的 urlMappings 条目, 移除服务时只处理这些条目
+     */
+    private static final Map<String, Map<String, String>> urlMappingIndex = new ConcurrentHashMap<>();
 
 
     public static void resetCache() {
-        services.clear();
-        fullNameService.clear();
+        update(ServiceRegistrySnapshot.Builder::clear);
         urlMappings.clear();
-        serverInfoMap.clear();
+        urlMappingIndex.clear();
+        unverifiedVersions.clear();
+        MetadataSnapshotStore.clear();
+        MetadataParseCache.clear();
+    }
+
+    /**
+     * 在当前快照的副本上执行修改, 然后原子地发布新快照
+     */
+    private static void update(Consumer<ServiceRegistrySnapshot.Builder> mutation) {
+        synchronized (UPDATE_LOCK) {
+            ServiceRegistrySnapshot.Builder builder = snapshot.toBuilder();
+            mutation.accept(builder);
+            snapshot = builder.build();
+        }
     }
 
     public static void removeServiceCache(String servicePath, boolean needLoadUrl) {
         String serviceName = servicePath.substring(servicePath.lastIndexOf(".") + 1);
         String fullServiceName = servicePath.substring(servicePath.lastIndexOf("/") + 1);
 
-        removeByServiceKey(serviceName, services);
-        removeByServiceKey(fullServiceName, fullNameService);
-
-        removeByServiceKey(fullServiceName, serverInfoMap);
+        //通过快照的 服务全限定名 -> version 索引直接定位该服务的key, 不再遍历所有key
+        if (snapshot.serverInfoIndex.containsKey(fullServiceName)) {
+            update(builder -> {
+                //update 持有锁, 此时的 snapshot 即 builder 的来源
+                Set<String> versions = snapshot.serverInfoIndex.getOrDefault(fullServiceName, Collections.emptyMap()).keySet();
+                for (String version : versions) {
+                    builder.services.remove(getKey(serviceName, version));
+                    builder.fullNameServices.remove(getKey(fullServiceName, version));
+                    builder.serverInfos.remove(getKey(fullServiceName, version));
+                }
+                LOGGER.info("根据 serviceName:{}, 移除不可用实例, 版本: {}", fullServiceName, versions);
+            });
+        }
+        MetadataSnapshotStore.removeService(fullServiceName);
+        MetadataParseCache.removeService(fullServiceName);
         //for openApi
         if (needLoadUrl) {
-            removeByServiceKeyValue(serviceName, urlMappings);
+            removeUrlMappings(serviceName);
+        }
+
+    }
+
+    /**
+     * 按反向索引移除服务写入的 urlMappings 条目. 已被其他服务覆盖的条目(值不同)保留
+     */
+    private static void removeUrlMappings(String serviceName) {
+        urlMappingIndex.computeIfPresent(serviceName, (name, entries) -> {
+            entries.forEach(urlMappings::remove);
+            return null;
+        });
+    }
+
+    /**
+     * 移除不在给定列表中的服务, 例如本地快照中已下线或者不在白名单中的服务
+     *
+     * @param serviceNames 需要保留的服务全限定名
+     */
+    public static void retainServices(Collection<String> serviceNames, boolean needLoadUrl) {
+        Set<String> staleServices = new HashSet<>(snapshot.serverInfoIndex.keySet());
+        staleServices.removeAll(serviceNames);
+        for (String serviceName : staleServices) {
+            LOGGER.info("服务 {} 已不在运行列表中，移除缓存", serviceName);
+            removeServiceCache(Constants.SERVICE_RUNTIME_PATH + "/" + serviceName, needLoadUrl);
         }
+    }
 
+    /**
+     * 从本地快照恢复服务元数据, 之后由 zk 在后台重新校验
+     *
+     * @return 恢复的服务版本数
+     */
+    public static int restoreSnapshot(boolean needLoadUrl) {
+        int restored = 0;
+        for (MetadataSnapshotStore.Record record : MetadataSnapshotStore.load()) {
+            try {
+                demandedServices.add(record.serviceName);
+                unverifiedVersions.add(getKey(record.serviceName, record.version));
+                ServiceInfo info = new ServiceInfo(record.host, record.port, record.version);
+                publish(record.serviceName, info, record.metadata,
+                        MetadataParseCache.parse(record.metadata, record.version), needLoadUrl);
+                restored++;
+            } catch (Exception e) {
+                LOGGER.error("{}:{} 快照元数据解析出错", record.serviceName, record.version);
+                LOGGER.error(e.getMessage(), e);
+            }
+        }
+        LOGGER.info("从本地快照恢复服务元数据 {} 个", restored);
+        return restored;
     }
 
     /**
@@ -125,7 +229,12 @@ public class ServiceCache {
 
     }
 
-    public static void loadServicesMetadata(String serviceName, List<ServiceInfo> infos, boolean needLoadUrl) {
+    /**
+     * 异步获取并解析服务元数据, 不阻塞调用线程. 获取失败的重试由 {@link MetadataFetcher} 调度
+     *
+     * @return 所有版本处理结束(成功或失败)后完成
+     */
+    public static CompletableFuture<Void> loadServicesMetadata(String serviceName, List<ServiceInfo> infos, boolean needLoadUrl) {
         LOGGER.info("access loadServicesMetadata, infos size:{}", infos.size());
         Map<String, ServiceInfo> diffVersionServices = new HashMap<>(64);
         for (ServiceInfo info : infos) {
@@ -133,84 +242,140 @@ public class ServiceCache {
             LOGGER.info("loadServicesMetadata info: {}:{}, version:{}", info.host, info.port, info.versionName);
         }
         LOGGER.info("diffVersionServices values size: {}", diffVersionServices.values().size());
-        for (ServiceInfo info : diffVersionServices.values()) {
-            String version = info.versionName;
-            String metadata;
-            int tryCount = 1;
-
-            while (tryCount <= 3) {
-                try {
-                    LOGGER.info("begin to fetch metadataClient ...");
-                    MetadataClient metadataClient = new MetadataClient(serviceName, version);
-                    metadata = metadataClient.getServiceMetadata();
-
-                    //TODO 命令行 需要这样写 (请不要删除)
-                    //metadata = MetadataUtils.getRomoteServiceMetadata(info.host, info.port, serviceName, version);
-
-                    LOGGER.info("fetched the  metadataClient, metadata:{}", metadata.substring(0, 100));
-                    if (metadata != null) {
-                        try (StringReader reader = new StringReader(metadata)) {
-                            Service serviceData = JAXB.unmarshal(reader, Service.class);
+        Collection<ServiceInfo> changedVersions = syncVersions(serviceName, infos, diffVersionServices);
+        LOGGER.info("{} 需要获取元数据的版本数: {}", serviceName, changedVersions.size());
+
+        //多个版本并行获取, 同一服务最多 FETCH_CONCURRENCY_PER_SERVICE 个并发, 每个版本解析完立即发布
+        Queue<ServiceInfo> pendingVersions = new ConcurrentLinkedQueue<>(changedVersions);
+        int lanes = Math.min(FETCH_CONCURRENCY_PER_SERVICE, changedVersions.size());
+        List<CompletableFuture<Void>> futures = new ArrayList<>(lanes);
+        for (int i = 0; i < lanes; i++) {
+            futures.add(loadNextVersion(serviceName, pendingVersions, needLoadUrl));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+    }
 
-                            //服务版本  以zk注册的版本为主
-                            if(!serviceData.getMeta().version.equals(version)){
-                                serviceData.getMeta().setVersion(version);
-                            }
+    /**
+     * 从队列中取下一个版本加载, 完成后继续取, 直到队列为空
+     */
+    private static CompletableFuture<Void> loadNextVersion(String serviceName, Queue<ServiceInfo> pendingVersions, boolean needLoadUrl) {
+        ServiceInfo info = pendingVersions.poll();
+        if (info == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return loadVersion(serviceName, info, needLoadUrl)
+                .thenCompose(r -> loadNextVersion(serviceName, pendingVersions, needLoadUrl));
+    }
 
-                            //ServiceName + VersionName for Key
-                            //AdminSkuPriceService:1.0.0
-                            String serviceKey = getKey(serviceData);
-                            //com.today.api.skuprice.service.AdminSkuPriceService:1.0.0
-                            String fullNameKey = getFullNameKey(serviceData);
+    private static CompletableFuture<Void> loadVersion(String serviceName, ServiceInfo info, boolean needLoadUrl) {
+        String version = info.versionName;
+        return MetadataFetcher.fetch(serviceName, info).handle((metadata, ex) -> {
+            if (ex != null) {
+                LOGGER.error("{}:{} metadata获取失败, 放弃本次加载: {}", serviceName, version, ex.getMessage());
+            } else if (metadata != null) {
+                //解析失败不重试, 相同的元数据重新获取也无法解析
+                try {
+                    //服务版本  以zk注册的版本为主, 相同的元数据复用之前的解析结果
+                    publish(serviceName, info, metadata, MetadataParseCache.parse(metadata, version), needLoadUrl);
+                    unverifiedVersions.remove(getKey(serviceName, version));
+                } catch (Exception e) {
+                    LOGGER.error("{}:{} metadata解析出错", serviceName, version);
+                    LOGGER.error(e.getMessage(), e);
 
-                            OptimizedMetadata.OptimizedService optimizedService = new OptimizedMetadata.OptimizedService(serviceData);
+                    LOGGER.info(metadata);
+                }
+            }
+            return null;
+        });
+    }
 
-                            services.put(serviceKey, optimizedService);
+    /**
+     * 将解析好的元数据发布到缓存
+     */
+    private static void publish(String serviceName, ServiceInfo info, String metadata,
+                                MetadataParseCache.ParsedMetadata parsed, boolean needLoadUrl) {
+        Service serviceData = parsed.service;
 
-                            serverInfoMap.put(fullNameKey, info);
+        //ServiceName + VersionName for Key
+        //AdminSkuPriceService:1.0.0
+        String serviceKey = getKey(serviceData);
+        //com.today.api.skuprice.service.AdminSkuPriceService:1.0.0
+        String fullNameKey = getFullNameKey(serviceData);
 
-                            LOGGER.info("----------------- service size :  " + services.size());
+        OptimizedMetadata.OptimizedService optimizedService = parsed.optimizedService;
 
-                            StringBuilder logBuilder = new StringBuilder();
-                            services.forEach((k, v) -> logBuilder.append(k + ",  "));
-                            LOGGER.info("zk 服务实例列表: {}", logBuilder);
+        update(builder -> {
+            builder.services.put(serviceKey, optimizedService);
+            builder.serverInfos.put(fullNameKey, info);
+            builder.fullNameServices.put(fullNameKey, optimizedService);
+        });
 
-                            fullNameService.put(fullNameKey, optimizedService);
+        Map<String, OptimizedMetadata.OptimizedService> services = snapshot.services;
+        LOGGER.info("----------------- service size :  " + services.size());
 
-                            if (needLoadUrl) {
-                                loadServiceUrl(serviceData);
-                            }
-                        } catch (Exception e) {
-                            LOGGER.error("{}:{} metadata解析出错, {}", serviceName, version);
-                            LOGGER.error(e.getMessage(), e);
+        StringBuilder logBuilder = new StringBuilder();
+        services.forEach((k, v) -> logBuilder.append(k + ",  "));
+        LOGGER.info("zk 服务实例列表: {}", logBuilder);
 
-                            LOGGER.info(metadata);
-                        }
-                    }
+        if (needLoadUrl) {
+            loadServiceUrl(serviceData);
+        }
+        MetadataSnapshotStore.record(serviceName, info, metadata);
+    }
 
-                    LOGGER.info("{}:{} metadata获取成功，尝试次数 {}", serviceName, version, tryCount);
-                    break;
+    /**
+     * 将运行实例的版本集合与当前缓存比对:
+     * <ul>
+     * <li>缓存中已经不存在运行实例的版本, 直接移除</li>
+     * <li>新出现的版本, 或者登记的实例已下线的版本(可能是重新发布), 需要重新获取元数据</li>
+     * <li>其余版本只是实例增减, 元数据不变, 不再获取</li>
+     * </ul>
+     *
+     * @param serviceName         服务全限定名
+     * @param infos               当前所有运行实例
+     * @param diffVersionServices 每个版本对应的一个运行实例
+     * @return 需要获取元数据的版本
+     */
+    private static Collection<ServiceInfo> syncVersions(String serviceName, List<ServiceInfo> infos, Map<String, ServiceInfo> diffVersionServices) {
+        Map<String, ServiceInfo> cachedVersions = snapshot.serverInfoIndex.getOrDefault(serviceName, Collections.emptyMap());
 
-                } catch (SoaException e) {
-                    LOGGER.error("{}:{} metadata获取出错,已尝试 {} 次", serviceName, version, tryCount);
-                    LOGGER.error(e.getMessage(), e);
-                    LOGGER.error("metadata获取出错", e);
-                    tryCount++;
-                } catch (Exception e) {
-                    LOGGER.error("{}:{} 触发 Exception ,已尝试 {} 次", serviceName, version, tryCount);
-                    LOGGER.error(e.getMessage(), e);
-                    tryCount++;
-                }
-                //睡眠
-                try {
-                    Thread.sleep(2000);
-                } catch (InterruptedException e) {
-                    LOGGER.error(e.getMessage(), e);
-                }
+        List<String> removedVersions = new ArrayList<>();
+        for (String version : cachedVersions.keySet()) {
+            if (!diffVersionServices.containsKey(version)) {
+                removedVersions.add(version);
+            }
+        }
+        if (!removedVersions.isEmpty()) {
+            String simpleName = serviceName.substring(serviceName.lastIndexOf(".") + 1);
+            update(builder -> removedVersions.forEach(version -> {
+                builder.services.remove(getKey(simpleName, version));
+                builder.fullNameServices.remove(getKey(serviceName, version));
+                builder.serverInfos.remove(getKey(serviceName, version));
+            }));
+            removedVersions.forEach(version -> MetadataSnapshotStore.remove(serviceName, version));
+            LOGGER.info("{} 移除没有运行实例的版本: {}", serviceName, removedVersions);
+        }
 
+        List<ServiceInfo> changedVersions = new ArrayList<>(diffVersionServices.size());
+        for (ServiceInfo info : diffVersionServices.values()) {
+            ServiceInfo cachedInfo = cachedVersions.get(info.versionName);
+            if (cachedInfo != null && containsInstance(infos, cachedInfo)
+                    && !unverifiedVersions.contains(getKey(serviceName, info.versionName))) {
+                LOGGER.debug("{}:{} 元数据已缓存，跳过获取", serviceName, info.versionName);
+                continue;
             }
+            changedVersions.add(info);
         }
+        return changedVersions;
+    }
 
+    private static boolean containsInstance(List<ServiceInfo> infos, ServiceInfo target) {
+        for (ServiceInfo info : infos) {
+            if (info.equalTo(target)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -219,48 +384,115 @@ public class ServiceCache {
      * @param service
      */
     private static void loadServiceUrl(Service service) {
+        String serviceName = service.getName();
         //将service和service中的方法、结构体、枚举和字段名分别设置对应的url，以方便搜索
-        urlMappings.put(service.getName(), "api/service/" + service.name + "/" + service.meta.version + ".htm");
+        putUrlMapping(serviceName, service.getName(), "api/service/" + service.name + "/" + service.meta.version + ".htm");
         List<Method> methods = service.getMethods();
         for (int i = 0; i < methods.size(); i++) {
             Method method = methods.get(i);
-            urlMappings.put(method.name, "api/method/" + service.name + "/" + service.meta.version + "/" + method.name + ".htm");
+            putUrlMapping(serviceName, method.name, "api/method/" + service.name + "/" + service.meta.version + "/" + method.name + ".htm");
         }
 
         List<Struct> structs = service.getStructDefinitions();
         for (int i = 0; i < structs.size(); i++) {
             Struct struct = structs.get(i);
-            urlMappings.put(struct.name, "api/struct/" + service.name + "/" + service.meta.version + "/" + struct.namespace + "." + struct.name + ".htm");
+            putUrlMapping(serviceName, struct.name, "api/struct/" + service.name + "/" + service.meta.version + "/" + struct.namespace + "." + struct.name + ".htm");
 
             List<Field> fields = struct.getFields();
             for (int j = 0; j < fields.size(); j++) {
                 Field field = fields.get(j);
-                urlMappings.put(field.name, "api/struct/" + service.name + "/" + service.meta.version + "/" + struct.namespace + "." + struct.name + ".htm");
+                putUrlMapping(serviceName, field.name, "api/struct/" + service.name + "/" + service.meta.version + "/" + struct.namespace + "." + struct.name + ".htm");
             }
         }
 
         List<TEnum> tEnums = service.getEnumDefinitions();
         for (int i = 0; i < tEnums.size(); i++) {
             TEnum tEnum = tEnums.get(i);
-            urlMappings.put(tEnum.name, "api/enum/" + service.name + "/" + service.meta.version + "/" + tEnum.namespace + "." + tEnum.name + ".htm");
+            putUrlMapping(serviceName, tEnum.name, "api/enum/" + service.name + "/" + service.meta.version + "/" + tEnum.namespace + "." + tEnum.name + ".htm");
         }
 
 
     }
 
+    /**
+     * 写入 urlMappings 并记录到服务的反向索引. 与 removeUrlMappings 在同一个索引项上串行执行, 并发加载和移除时索引保持一致
+     */
+    private static void putUrlMapping(String serviceName, String key, String url) {
+        urlMappingIndex.compute(serviceName, (name, entries) -> {
+            Map<String, String> result = entries == null ? new HashMap<>() : entries;
+            result.put(key, url);
+            urlMappings.put(key, url);
+            return result;
+        });
+    }
+
 
     public void destory() {
-        services.clear();
+        update(builder -> builder.services.clear());
     }
 
 
+    /**
+     * @param name    服务SimpleName(AdminSkuPriceService) 或 全限定名(com.today.api.skuprice.service.AdminSkuPriceService)
+     * @param version 服务版本
+     */
     public static OptimizedMetadata.OptimizedService getService(String name, String version) {
+        OptimizedMetadata.OptimizedService service = snapshot.getService(name, version);
+        if (service == null && lazyLoading) {
+            return loadOnDemand(name, version);
+        }
+        return service;
+    }
+
+    /**
+     * 开启按需加载模式
+     *
+     * @param sync 提交服务同步, 返回的 future 在覆盖本次请求的同步结束后完成
+     */
+    static void enableLazyLoading(Function<String, CompletableFuture<Void>> sync) {
+        lazySync = sync;
+        lazyLoading = true;
+    }
 
-        if (name.contains(".")) {
-            return fullNameService.get(getKey(name, version));
-        } else {
-            return services.get(getKey(name, version));
+    /**
+     * @return 是否需要随zk变化加载该服务的元数据. 非按需加载模式下总是需要
+     */
+    static boolean isDemanded(String serviceName) {
+        return !lazyLoading || demandedServices.contains(serviceName);
+    }
+
+    /**
+     * 按需加载服务元数据, 最多等待 LAZY_WAIT_MS. 服务或版本没有运行实例时直接返回 null
+     */
+    private static OptimizedMetadata.OptimizedService loadOnDemand(String name, String version) {
+        String serviceName = name.indexOf('.') >= 0 ? name : ZookeeperClient.getFullName(name);
+        List<ServiceInfo> infos = serviceName == null ? null : ZookeeperClient.getServices().get(serviceName);
+        if (infos == null || infos.stream().noneMatch(info -> version.equals(info.versionName))) {
+            return null;
+        }
+
+        CompletableFuture<Void> created = new CompletableFuture<>();
+        CompletableFuture<Void> loading = lazyLoads.putIfAbsent(serviceName, created);
+        if (loading == null) {
+            loading = created;
+            //先标记为已请求, 之后的同步(包括并发到达的zk事件)都会加载元数据, 同步按服务串行, 不会并行加载
+            demandedServices.add(serviceName);
+            LOGGER.info("按需加载服务 {} 的元数据", serviceName);
+            lazySync.apply(serviceName).whenComplete((r, e) -> {
+                lazyLoads.remove(serviceName, created);
+                created.complete(null);
+            });
+        }
+        try {
+            loading.get(LAZY_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            LOGGER.warn("等待服务 {}:{} 元数据加载超时({} ms)", serviceName, version, LAZY_WAIT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOGGER.error(serviceName + " 元数据按需加载失败", e.getCause());
         }
+        return snapshot.getService(name, version);
     }
 
     private static String getKey(Service service) {
@@ -275,11 +507,21 @@ public class ServiceCache {
         return name + ":" + version;
     }
 
+    /**
+     * 元数据快照的版本号, 每次元数据变化(加载, 替换, 移除)后递增. 可用于判断基于元数据构建的缓存是否需要校验
+     */
+    public static long getSnapshotVersion() {
+        return snapshot.version;
+    }
+
+    /**
+     * @return 当前快照中以 SimpleName:version 为key的服务元数据, 只读
+     */
     public static Map<String, OptimizedMetadata.OptimizedService> getServices() {
-        return services;
+        return snapshot.services;
     }
 
     public static ServiceInfo getServerInfoMap(String name, String version) {
-        return serverInfoMap.get(getKey(name, version));
+        return snapshot.getServerInfo(name, version);
     }
 }
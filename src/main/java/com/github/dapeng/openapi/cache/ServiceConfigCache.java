@@ -0,0 +1,78 @@
+package com.github.dapeng.openapi.cache;
+
+import java.util.Map;
+
+/**
+ * 服务调用配置(/soa/config/services), 由 {@link ZookeeperClient} 监听并在变化时整体替换
+ * <p>
+ * 请求线程只读取 volatile 引用的不可变配置表, 无锁且不做任何解析.
+ *
+ * @see ServiceConfigTable
+ */
+public final class ServiceConfigCache {
+
+    /**
+     * 调用超时时间
+     */
+    public static final String KEY_TIMEOUT = "timeout";
+    /**
+     * 失败重试次数
+     */
+    public static final String KEY_RETRY = "retry";
+    /**
+     * 调用优先级
+     */
+    public static final String KEY_PRIORITY = "priority";
+    /**
+     * 响应缓存时长
+     */
+    public static final String KEY_CACHE = "cache";
+
+    private static volatile ServiceConfigTable table = ServiceConfigTable.EMPTY;
+
+    private ServiceConfigCache() {
+    }
+
+    /**
+     * @return 配置原文, 未配置时返回 null
+     */
+    public static String get(String service, String method, String key) {
+        ServiceConfigTable.Value value = table.get(service, method, key);
+        return value == null ? null : value.raw;
+    }
+
+    /**
+     * @return 时长配置的毫秒数, 未配置或不是合法时长时返回 defaultValue
+     */
+    public static long getMillis(String service, String method, String key, long defaultValue) {
+        ServiceConfigTable.Value value = table.get(service, method, key);
+        return value == null || value.millis < 0 ? defaultValue : value.millis;
+    }
+
+    /**
+     * @return 整数配置, 未配置或不是整数时返回 defaultValue
+     */
+    public static int getInt(String service, String method, String key, int defaultValue) {
+        ServiceConfigTable.Value value = table.get(service, method, key);
+        return value == null || value.number == null ? defaultValue : value.number;
+    }
+
+    /**
+     * 方法的超时时间, 优先级: 方法配置 > 服务配置 > 全局配置 > defaultValue
+     */
+    public static long getTimeout(String service, String method, long defaultValue) {
+        return getMillis(service, method, KEY_TIMEOUT, defaultValue);
+    }
+
+    public static int getRetry(String service, String method, int defaultValue) {
+        return getInt(service, method, KEY_RETRY, defaultValue);
+    }
+
+    public static int getPriority(String service, String method, int defaultValue) {
+        return getInt(service, method, KEY_PRIORITY, defaultValue);
+    }
+
+    static void update(String globalConfig, Map<String, String> serviceConfigs) {
+        table = ServiceConfigTable.parse(globalConfig, serviceConfigs);
+    }
+}
@@ -0,0 +1,162 @@
+package com.github.dapeng.openapi.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * /soa/config/services 配置的不可变解析结果
+ * <p>
+ * 节点内容格式与 dapeng 一致, 每行(或以 ';' 分隔)一个配置项:
+ * <pre>
+ * timeout/800ms,register:4001ms,modifySupplier:200ms;
+ * cache/0,getSkuPrice:30s;
+ * retry/0,getSkuPrice:2;
+ * priority/5,createOrder:9;
+ * </pre>
+ * '/' 前为配置项名称, 之后第一个不含 ':' 的值为服务级默认值, method:value 为方法级配置.
+ * /soa/config/services 节点本身的内容为全局配置, 子节点(服务全限定名)的内容为服务配置.
+ * 所有值在构建时解析完成, 查询时只做 map 查找.
+ */
+final class ServiceConfigTable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ServiceConfigTable.class);
+
+    static final ServiceConfigTable EMPTY = new ServiceConfigTable(Collections.emptyMap(), Collections.emptyMap());
+
+    /**
+     * 配置项名称 -> 全局配置
+     */
+    private final Map<String, Item> global;
+    /**
+     * 服务名(全限定名 与 SimpleName) -> 配置项名称 -> 服务配置
+     */
+    private final Map<String, Map<String, Item>> services;
+
+    static final class Value {
+        final String raw;
+        /**
+         * 按时长解析后的毫秒数, 不是合法时长时为 -1
+         */
+        final long millis;
+        /**
+         * 按整数解析后的值, 不是整数时为 null
+         */
+        final Integer number;
+
+        Value(String raw) {
+            this.raw = raw;
+            this.millis = parseMillis(raw);
+            this.number = parseInt(raw);
+        }
+    }
+
+    private static final class Item {
+        Value defaultValue;
+        final Map<String, Value> methods = new HashMap<>();
+    }
+
+    private ServiceConfigTable(Map<String, Item> global, Map<String, Map<String, Item>> services) {
+        this.global = global;
+        this.services = services;
+    }
+
+    /**
+     * 查找顺序: 服务方法级 > 服务级 > 全局方法级 > 全局默认值
+     */
+    Value get(String service, String method, String key) {
+        Map<String, Item> serviceItems = services.get(service);
+        Value value = serviceItems == null ? null : lookup(serviceItems.get(key), method);
+        return value != null ? value : lookup(global.get(key), method);
+    }
+
+    private static Value lookup(Item item, String method) {
+        if (item == null) {
+            return null;
+        }
+        Value value = item.methods.get(method);
+        return value != null ? value : item.defaultValue;
+    }
+
+    /**
+     * @param globalConfig   /soa/config/services 节点内容, 可以为 null
+     * @param serviceConfigs 服务全限定名 -> 子节点内容
+     */
+    static ServiceConfigTable parse(String globalConfig, Map<String, String> serviceConfigs) {
+        Map<String, Map<String, Item>> services = new HashMap<>();
+        serviceConfigs.forEach((service, config) -> {
+            Map<String, Item> items = parseItems(service, config);
+            services.put(service, items);
+            //请求中可能只使用 SimpleName
+            String simpleName = service.substring(service.lastIndexOf('.') + 1);
+            services.putIfAbsent(simpleName, items);
+        });
+        return new ServiceConfigTable(parseItems("global", globalConfig), services);
+    }
+
+    private static Map<String, Item> parseItems(String owner, String config) {
+        Map<String, Item> items = new HashMap<>();
+        if (config == null) {
+            return items;
+        }
+        for (String line : config.split("[;\\r\\n]+")) {
+            line = line.trim();
+            int slash = line.indexOf('/');
+            if (slash <= 0) {
+                if (!line.isEmpty()) {
+                    LOGGER.warn("忽略无法解析的配置[{}]: {}", owner, line);
+                }
+                continue;
+            }
+            Item item = items.computeIfAbsent(line.substring(0, slash).trim(), k -> new Item());
+            for (String part : line.substring(slash + 1).split(",")) {
+                part = part.trim();
+                if (part.isEmpty()) {
+                    continue;
+                }
+                int colon = part.indexOf(':');
+                if (colon < 0) {
+                    item.defaultValue = new Value(part);
+                } else {
+                    item.methods.put(part.substring(0, colon).trim(), new Value(part.substring(colon + 1).trim()));
+                }
+            }
+        }
+        return items;
+    }
+
+    private static Integer parseInt(String raw) {
+        try {
+            return Integer.valueOf(raw.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 解析时长, 支持 ms, s, m, h 后缀, 无后缀时为毫秒
+     */
+    static long parseMillis(String raw) {
+        String value = raw.trim().toLowerCase();
+        long unit = 1;
+        if (value.endsWith("ms")) {
+            value = value.substring(0, value.length() - 2);
+        } else if (value.endsWith("s")) {
+            unit = 1000;
+            value = value.substring(0, value.length() - 1);
+        } else if (value.endsWith("m")) {
+            unit = 60_000;
+            value = value.substring(0, value.length() - 1);
+        } else if (value.endsWith("h")) {
+            unit = 3_600_000;
+            value = value.substring(0, value.length() - 1);
+        }
+        try {
+            return Long.parseLong(value.trim()) * unit;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
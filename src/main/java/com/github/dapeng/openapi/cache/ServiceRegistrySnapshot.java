@@ -0,0 +1,121 @@
+package com.github.dapeng.openapi.cache;
+
+import com.github.dapeng.json.OptimizedMetadata;
+import com.github.dapeng.registry.ServiceInfo;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 服务元数据注册表的不可变快照
+ * <p>
+ * 请求线程只读取当前快照, 不需要加锁; zk 变更时在 {@link Builder} 上修改副本, 构建完成后由 {@link ServiceCache} 一次性发布.
+ */
+final class ServiceRegistrySnapshot {
+
+    static final ServiceRegistrySnapshot EMPTY = new ServiceRegistrySnapshot(0L,
+            Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap(),
+            Collections.emptyMap(), Collections.emptyMap());
+
+    /**
+     * 快照版本号, 每次发布递增
+     */
+    final long version;
+    /**
+     * etc. AdminSkuPriceService:1.0.0 -> 元信息
+     */
+    final Map<String, OptimizedMetadata.OptimizedService> services;
+    /**
+     * etc. com.today.api.skuprice.service.AdminSkuPriceService:1.0.0 -> 元信息
+     */
+    final Map<String, OptimizedMetadata.OptimizedService> fullNameServices;
+    /**
+     * etc. com.today.api.skuprice.service.AdminSkuPriceService:1.0.0 -> ServiceInfo 实例信息
+     */
+    final Map<String, ServiceInfo> serverInfos;
+    /**
+     * 两级索引: 服务名(SimpleName 或 全限定名) -> version -> 元信息
+     * <p>
+     * SimpleName 不含 '.', 全限定名必含 '.', 两者可以共用一个索引. 查询时无需拼接 key
+     */
+    final Map<String, Map<String, OptimizedMetadata.OptimizedService>> serviceIndex;
+    /**
+     * 两级索引: 服务全限定名 -> version -> ServiceInfo 实例信息
+     */
+    final Map<String, Map<String, ServiceInfo>> serverInfoIndex;
+
+    private ServiceRegistrySnapshot(long version,
+                                    Map<String, OptimizedMetadata.OptimizedService> services,
+                                    Map<String, OptimizedMetadata.OptimizedService> fullNameServices,
+                                    Map<String, ServiceInfo> serverInfos,
+                                    Map<String, Map<String, OptimizedMetadata.OptimizedService>> serviceIndex,
+                                    Map<String, Map<String, ServiceInfo>> serverInfoIndex) {
+        this.version = version;
+        this.services = services;
+        this.fullNameServices = fullNameServices;
+        this.serverInfos = serverInfos;
+        this.serviceIndex = serviceIndex;
+        this.serverInfoIndex = serverInfoIndex;
+    }
+
+    OptimizedMetadata.OptimizedService getService(String name, String version) {
+        Map<String, OptimizedMetadata.OptimizedService> versions = serviceIndex.get(name);
+        return versions == null ? null : versions.get(version);
+    }
+
+    ServiceInfo getServerInfo(String fullName, String version) {
+        Map<String, ServiceInfo> versions = serverInfoIndex.get(fullName);
+        return versions == null ? null : versions.get(version);
+    }
+
+    Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    static final class Builder {
+        private final long baseVersion;
+        final Map<String, OptimizedMetadata.OptimizedService> services;
+        final Map<String, OptimizedMetadata.OptimizedService> fullNameServices;
+        final Map<String, ServiceInfo> serverInfos;
+
+        private Builder(ServiceRegistrySnapshot base) {
+            this.baseVersion = base.version;
+            this.services = new HashMap<>(base.services);
+            this.fullNameServices = new HashMap<>(base.fullNameServices);
+            this.serverInfos = new HashMap<>(base.serverInfos);
+        }
+
+        void clear() {
+            services.clear();
+            fullNameServices.clear();
+            serverInfos.clear();
+        }
+
+        ServiceRegistrySnapshot build() {
+            Map<String, Map<String, OptimizedMetadata.OptimizedService>> serviceIndex = new HashMap<>(64);
+            index(services, serviceIndex);
+            index(fullNameServices, serviceIndex);
+            Map<String, Map<String, ServiceInfo>> serverInfoIndex = new HashMap<>(64);
+            index(serverInfos, serverInfoIndex);
+
+            return new ServiceRegistrySnapshot(baseVersion + 1,
+                    Collections.unmodifiableMap(services),
+                    Collections.unmodifiableMap(fullNameServices),
+                    Collections.unmodifiableMap(serverInfos),
+                    serviceIndex,
+                    serverInfoIndex);
+        }
+
+        /**
+         * 将 name:version 形式的 key 拆分成两级索引
+         */
+        private static <T> void index(Map<String, T> flat, Map<String, Map<String, T>> index) {
+            flat.forEach((key, value) -> {
+                int separator = key.indexOf(':');
+                index.computeIfAbsent(key.substring(0, separator), k -> new HashMap<>(4))
+                        .put(key.substring(separator + 1), value);
+            });
+        }
+    }
+}
@@ -22,6 +22,7 @@ public class ZkBootstrap {
      */
     public void openApiInit() {
         String zkHost = EnvUtil.prepareEnv();
+        destroy();
         zookeeperClient = new ZookeeperClient(zkHost);
         zookeeperClient.init(true);
     }
@@ -29,15 +30,28 @@ public class ZkBootstrap {
 
     public void init() {
         String zkHost = EnvUtil.prepareEnv();
+        destroy();
         zookeeperClient = new ZookeeperClient(zkHost);
         zookeeperClient.init(false);
     }
 
+    /**
+     * 按需加载: 启动时只跟踪服务实例, 服务第一次被请求时才获取并解析元数据.
+     * 适合只使用少量注册服务的网关, 启动时间和内存占用只与实际使用的服务有关
+     */
+    public void lazyInit() {
+        String zkHost = EnvUtil.prepareEnv();
+        destroy();
+        zookeeperClient = new ZookeeperClient(zkHost);
+        zookeeperClient.lazyInit();
+    }
+
     /**
      * 指定元信息获取接口
      */
     public void filterInit(Set<String> paths) {
         String zkHost = EnvUtil.prepareEnv();
+        destroy();
         zookeeperClient = new ZookeeperClient(zkHost);
         zookeeperClient.filterInit(paths);
     }
@@ -49,7 +63,18 @@ public class ZkBootstrap {
      */
     public void filterInitWhiteList(Set<String> services) {
         String zkHost = EnvUtil.prepareEnv();
+        destroy();
         zookeeperClient = new ZookeeperClient(zkHost);
         zookeeperClient.filterInitWhiteList(services);
     }
+
+    /**
+     * 关闭当前的 zk client 及其线程, 重新初始化或应用停止时调用
+     */
+    public void destroy() {
+        if (zookeeperClient != null) {
+            zookeeperClient.destroy();
+            zookeeperClient = null;
+        }
+    }
 }
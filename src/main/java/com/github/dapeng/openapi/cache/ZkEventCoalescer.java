@@ -0,0 +1,98 @@
+package com.github.dapeng.openapi.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * zk 事件合并器
+ * <p>
+ * 同一路径上的事件在静默期(quietMs)内不断到达时, 只在最后一个事件之后静默期结束时执行一次处理;
+ * 为避免持续变化导致一直不处理, 从第一个事件起最多延迟 maxDelayMs. 处理时会重新读取zk, 所以只会用到最新的子节点列表.
+ */
+class ZkEventCoalescer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ZkEventCoalescer.class);
+
+    private final long quietMs;
+    private final long maxDelayMs;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, PendingEvent> pendingEvents = new ConcurrentHashMap<>();
+
+    private static class PendingEvent {
+        final long firstEventAt;
+        volatile long lastEventAt;
+        volatile Runnable action;
+
+        PendingEvent(long now, Runnable action) {
+            this.firstEventAt = now;
+            this.lastEventAt = now;
+            this.action = action;
+        }
+    }
+
+    ZkEventCoalescer(long quietMs, long maxDelayMs) {
+        this.quietMs = quietMs;
+        this.maxDelayMs = Math.max(quietMs, maxDelayMs);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("openapi-zk-event"));
+    }
+
+    /**
+     * 提交某个路径上的事件处理, 静默期内的后续事件会合并到同一次处理
+     */
+    void submit(String path, Runnable action) {
+        if (quietMs <= 0) {
+            action.run();
+            return;
+        }
+        long now = System.currentTimeMillis();
+        PendingEvent[] created = new PendingEvent[1];
+        pendingEvents.compute(path, (p, existing) -> {
+            if (existing == null) {
+                created[0] = new PendingEvent(now, action);
+                return created[0];
+            }
+            existing.lastEventAt = now;
+            existing.action = action;
+            return existing;
+        });
+        if (created[0] != null) {
+            schedule(path, created[0], quietMs);
+        } else {
+            LOGGER.debug("合并 {} 上的zk事件", path);
+        }
+    }
+
+    /**
+     * 丢弃尚未处理的事件并停止调度线程
+     */
+    void shutdown() {
+        scheduler.shutdownNow();
+        pendingEvents.clear();
+    }
+
+    private void schedule(String path, PendingEvent event, long delayMs) {
+        scheduler.schedule(() -> fire(path, event), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void fire(String path, PendingEvent event) {
+        long now = System.currentTimeMillis();
+        long quietLeft = event.lastEventAt + quietMs - now;
+        long maxDelayLeft = event.firstEventAt + maxDelayMs - now;
+        if (quietLeft > 0 && maxDelayLeft > 0) {
+            schedule(path, event, Math.min(quietLeft, maxDelayLeft));
+            return;
+        }
+        //先移除再处理, 处理期间到达的新事件会开始新一轮合并
+        pendingEvents.remove(path, event);
+        try {
+            event.action.run();
+        } catch (Exception e) {
+            LOGGER.error("处理 " + path + " 的zk事件出错", e);
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.github.dapeng.openapi.cache;
 
+import com.github.dapeng.client.netty.MetadataUtils;
 import com.github.dapeng.openapi.utils.Constants;
+import com.github.dapeng.openapi.utils.EnvUtil;
+import com.github.dapeng.openapi.utils.InstanceSelectors;
 import com.github.dapeng.registry.ServiceInfo;
 import com.github.dapeng.registry.zookeeper.ZkUtils;
 import org.apache.zookeeper.KeeperException;
@@ -10,6 +13,7 @@ import org.apache.zookeeper.ZooKeeper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.stream.Collectors;
@@ -26,6 +30,10 @@ public class ZookeeperClient implements Watcher {
     private static final Logger LOGGER = LoggerFactory.getLogger(ZookeeperClient.class);
 
     private final static Map<String, List<ServiceInfo>> caches = new ConcurrentHashMap<>();
+    /**
+     * 服务SimpleName -> 全限定名, 随 caches 一起维护, 按 SimpleName 查找服务时不需要遍历 caches
+     */
+    private final static Map<String, String> fullNames = new ConcurrentHashMap<>();
 
     private final String zookeeperHost;
 
@@ -35,12 +43,55 @@ public class ZookeeperClient implements Watcher {
 
     private static Set<String> whitelist = Collections.synchronizedSet(new HashSet<>());
 
+    /**
+     * 是否已经从本地快照恢复了元数据. 恢复后连接zk不再等待元数据加载完成, 由zk在后台校验
+     */
+    private volatile boolean warmStarted = false;
+
+    /**
+     * 常驻的元数据加载线程池, zk事件回调只负责提交任务, 不在事件线程中加载
+     */
+    private final ExecutorService loaderExecutor;
+
+    /**
+     * 每个服务的同步状态. 同一服务同时最多只有一个同步在执行, 执行期间的新请求合并为执行结束后的一次重新同步
+     */
+    private final Map<String, SyncState> syncStates = new ConcurrentHashMap<>();
+
+    private static class SyncState {
+        /**
+         * 读取并替换该服务的实例列表时持有, 保证后读取的子节点列表后写入
+         */
+        final Object instancesLock = new Object();
+        /**
+         * 是否有同步任务已提交或正在执行
+         */
+        boolean running;
+        /**
+         * 等待下一次同步的请求, 不为 null 时表示需要(再)同步一次
+         */
+        CompletableFuture<Void> pending;
+    }
+
+    /**
+     * 合并短时间内同一路径上的 NodeChildrenChanged 事件, 例如发布时大量实例的上下线
+     */
+    private final ZkEventCoalescer eventCoalescer = new ZkEventCoalescer(
+            EnvUtil.getInt("soa.openapi.zk.event.quiet.ms", 500),
+            EnvUtil.getInt("soa.openapi.zk.event.max.delay.ms", 5000));
+
     ZookeeperClient(final String zookeeperHost) {
         this.zookeeperHost = zookeeperHost;
+        int processor = Math.max(Runtime.getRuntime().availableProcessors(), 4);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(processor, processor, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new NamedThreadFactory("openapi-zk-loader"));
+        executor.allowCoreThreadTimeOut(true);
+        this.loaderExecutor = executor;
     }
 
     public synchronized void init(boolean needLoadUrl) {
         this.needLoadUrl = needLoadUrl;
+        restoreSnapshot();
         connect(null, null);
         LOGGER.info("wait for lock");
     }
@@ -50,7 +101,10 @@ public class ZookeeperClient implements Watcher {
     }
 
 
-    private synchronized void destroy() {
+    /**
+     * 关闭zk连接并停止事件合并和元数据加载线程, 之后该实例不能再使用
+     */
+    synchronized void destroy() {
         try {
             if (zk != null) {
                 zk.close();
@@ -58,9 +112,12 @@ public class ZookeeperClient implements Watcher {
         } catch (InterruptedException e) {
             LOGGER.error(e.getMessage(), e);
         }
+        eventCoalescer.shutdown();
+        loaderExecutor.shutdownNow();
 
 
         caches.clear();
+        fullNames.clear();
         LOGGER.info("关闭连接，清空service info caches");
     }
 
@@ -82,15 +139,35 @@ public class ZookeeperClient implements Watcher {
         return caches;
     }
 
+    /**
+     * @param simpleName 服务SimpleName, 如 AdminSkuPriceService
+     * @return 有运行实例的服务全限定名, 没有时返回 null
+     */
+    public static String getFullName(String simpleName) {
+        return fullNames.get(simpleName);
+    }
+
     public static Set<String> getWhitelist() {
         return whitelist;
     }
 
+    /**
+     * 按需加载模式: 只跟踪服务实例, 服务第一次被请求时才获取元数据
+     */
+    public synchronized void lazyInit() {
+        this.needLoadUrl = false;
+        ServiceCache.enableLazyLoading(this::scheduleSync);
+        restoreSnapshot();
+        connect(null, null);
+        LOGGER.info("wait for lock");
+    }
+
     /**
      * 针对指定的从服务过滤，只获取指定的服务元信息
      */
     public synchronized void filterInit(Set<String> paths) {
         whitelist.addAll(paths);
+        restoreSnapshot();
         connect(null, null);
         LOGGER.info("wait for lock");
     }
@@ -102,11 +179,21 @@ public class ZookeeperClient implements Watcher {
      */
     public synchronized void filterInitWhiteList(Set<String> services) {
         whitelist.addAll(services);
+        restoreSnapshot();
         connect(Constants.SERVICE_WITHELIST_PATH, services);
         LOGGER.info("api-gate-way service load successful");
     }
 
 
+    /**
+     * 从本地快照恢复元数据(未配置快照文件时不做任何事)
+     */
+    private void restoreSnapshot() {
+        if (!warmStarted) {
+            warmStarted = ServiceCache.restoreSnapshot(needLoadUrl) > 0;
+        }
+    }
+
     @Override
     public void process(WatchedEvent event) {
         LOGGER.warn("ZookeeperClient::process zkEvent: " + event);
@@ -118,23 +205,55 @@ public class ZookeeperClient implements Watcher {
             case NodeChildrenChanged:
                 if (event.getPath().equals(Constants.SERVICE_WITHELIST_PATH)) {
                     LOGGER.info("[{}] 服务白名单发生变化，重新获取...", event.getPath());
-                    whitelist.clear();
-                    syncWhiteList();
+                    eventCoalescer.submit(event.getPath(), () -> {
+                        whitelist.clear();
+                        syncWhiteList();
+                    });
                 } else if (event.getPath().equals(Constants.SERVICE_RUNTIME_PATH)) {
                     LOGGER.info("ZookeeperClient::process 服务runtime子节点发生变化, 重新获取子节点");
-                    filterServersList();
+                    eventCoalescer.submit(event.getPath(), this::filterServersList);
                 } else if (event.getPath().startsWith(Constants.SERVICE_RUNTIME_PATH + "/")) {
                     LOGGER.info("ZookeeperClient::process 服务path: " + event.getPath() + " 的子节点发生变化，重新获取信息");
                     String serviceName = event.getPath().substring(event.getPath().lastIndexOf('/') + 1);
-                    syncServiceRuntimeInfo(serviceName);
+                    //实例列表立即刷新, 网关选择实例时不会选中已下线的实例; 只有元数据的重新加载需要合并
+                    refreshInstances(serviceName);
+                    eventCoalescer.submit(event.getPath(), () -> scheduleSync(serviceName));
+                } else {
+                    onConfigChanged(event.getPath());
                 }
                 break;
+            case NodeCreated:
+            case NodeDataChanged:
+            case NodeDeleted:
+                //配置节点删除后重新读取, 已删除服务(或整个配置根节点)的配置随之清除
+                onConfigChanged(event.getPath());
+                break;
             default:
                 LOGGER.info("just ignore");
         }
 
     }
 
+    /**
+     * 配置节点或其子节点变化时, 重新读取整个配置
+     */
+    private void onConfigChanged(String path) {
+        if (isUnder(path, Constants.CONFIG_SERVICE_PATH)) {
+            LOGGER.info("[{}] 服务配置发生变化，重新获取...", path);
+            eventCoalescer.submit(Constants.CONFIG_SERVICE_PATH, this::syncServiceConfig);
+        } else if (isUnder(path, Constants.CONFIG_FREQ_PATH)) {
+            LOGGER.info("[{}] 限流配置发生变化，重新获取...", path);
+            eventCoalescer.submit(Constants.CONFIG_FREQ_PATH, this::syncFreqConfig);
+        } else if (isUnder(path, Constants.CONFIG_ROUTER_PATH)) {
+            LOGGER.info("[{}] 路由配置发生变化，重新获取...", path);
+            eventCoalescer.submit(Constants.CONFIG_ROUTER_PATH, this::syncRouteConfig);
+        }
+    }
+
+    private static boolean isUnder(String path, String configPath) {
+        return path.equals(configPath) || path.startsWith(configPath + "/");
+    }
+
     /**
      * 连接zookeeper
      * <p>
@@ -159,18 +278,27 @@ public class ZookeeperClient implements Watcher {
 
                     case SyncConnected:
                         LOGGER.info("ZookeeperClient::connect Zookeeper Watcher 已连接 zookeeper Server,Zookeeper host: {}", zookeeperHost);
+                        if (warmStarted) {
+                            //已从本地快照恢复, 不阻塞启动, 元数据校验在后台继续
+                            semaphore.countDown();
+                        }
+                        syncServiceConfig();
+                        syncFreqConfig();
+                        syncRouteConfig();
+                        CompletableFuture<Void> loaded = CompletableFuture.completedFuture(null);
                         if (null != caseParams) {
                             switch (caseParams) {
                                 case Constants.SERVICE_WITHELIST_PATH:
-                                    if (null != o) this.registerServiceWhiteList((Set<String>) o);
+                                    if (null != o) loaded = this.registerServiceWhiteList((Set<String>) o);
                                     break;
                                 default:
                                     break;
                             }
                         } else {
-                            filterServersList();
+                            loaded = filterServersList();
                         }
-                        semaphore.countDown();
+                        //首次加载完成后才放行 init, 事件线程本身不等待
+                        loaded.whenComplete((r, ex) -> semaphore.countDown());
                         break;
 
                     case Disconnected:
@@ -202,15 +330,20 @@ public class ZookeeperClient implements Watcher {
      * 根据serviceName节点的路径，获取下面的子节点，并监听子节点变化
      *
      * @param
+     * @return 元数据加载结束后完成
      */
-    private void syncServiceRuntimeInfo(String serviceName) {
+    private CompletableFuture<Void> syncServiceRuntimeInfo(String serviceName) {
         String servicePath = Constants.SERVICE_RUNTIME_PATH + "/" + serviceName;
         try {
             if (zk == null) {
                 init(needLoadUrl);
             }
 
-            List<String> children = zk.getChildren(servicePath, this);
+            List<String> children;
+            synchronized (syncStateOf(serviceName).instancesLock) {
+                children = zk.getChildren(servicePath, this);
+                resetServiceInfoByName(serviceName, servicePath, children, caches);
+            }
 
             if (children.size() == 0) {
                 //移除这个没有运行服务的相关信息...
@@ -218,49 +351,209 @@ public class ZookeeperClient implements Watcher {
                 LOGGER.info("{} 节点下面没有serviceInfo 信息，当前服务没有运行实例...", servicePath);
             } else {
                 LOGGER.info("获取{}的子节点成功", servicePath);
-                resetServiceInfoByName(serviceName, servicePath, children, caches);
-                ServiceCache.loadServicesMetadata(serviceName, caches.get(serviceName), needLoadUrl);
-                LOGGER.info("syncServiceRuntimeInfo 解析服务 {} 元数据信息结束", serviceName);
+                if (!ServiceCache.isDemanded(serviceName)) {
+                    LOGGER.debug("按需加载模式, 服务 {} 尚未被请求, 只更新实例信息", serviceName);
+                    return CompletableFuture.completedFuture(null);
+                }
+                return ServiceCache.loadServicesMetadata(serviceName, caches.get(serviceName), needLoadUrl)
+                        .whenComplete((r, e) -> LOGGER.info("syncServiceRuntimeInfo 解析服务 {} 元数据信息结束", serviceName));
             }
         } catch (KeeperException | InterruptedException e) {
             LOGGER.error(e.getMessage(), e);
         }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * 只刷新服务的实例列表, 不加载元数据. 在zk事件线程中执行, 不经过事件合并
+     */
+    private void refreshInstances(String serviceName) {
+        String servicePath = Constants.SERVICE_RUNTIME_PATH + "/" + serviceName;
+        synchronized (syncStateOf(serviceName).instancesLock) {
+            try {
+                resetServiceInfoByName(serviceName, servicePath, zk.getChildren(servicePath, this), caches);
+            } catch (KeeperException.NoNodeException e) {
+                resetServiceInfoByName(serviceName, servicePath, Collections.emptyList(), caches);
+            } catch (KeeperException | InterruptedException e) {
+                LOGGER.error("刷新服务 " + serviceName + " 的实例列表失败", e);
+            }
+        }
+    }
+
+    private SyncState syncStateOf(String serviceName) {
+        return syncStates.computeIfAbsent(serviceName, name -> new SyncState());
+    }
+
+    /**
+     * 提交服务同步任务. 若该服务的同步还未开始, 直接合并到该任务; 若正在执行, 标记为在其结束后再同步一次.
+     * 同一服务的同步不会并行, 避免较早开始的同步后结束, 覆盖较新的实例信息或者恢复已被移除的版本
+     *
+     * @return 覆盖本次请求的同步完成后完成
+     */
+    private CompletableFuture<Void> scheduleSync(String serviceName) {
+        SyncState state = syncStateOf(serviceName);
+        synchronized (state) {
+            if (state.pending == null) {
+                state.pending = new CompletableFuture<>();
+            }
+            CompletableFuture<Void> future = state.pending;
+            if (!state.running) {
+                state.running = true;
+                submitSync(serviceName, state);
+            }
+            return future;
+        }
+    }
 
+    private void submitSync(String serviceName, SyncState state) {
+        loaderExecutor.execute(() -> {
+            CompletableFuture<Void> current;
+            synchronized (state) {
+                //开始执行后, 之后的变化需要再同步一次, 才能读取到最新的子节点
+                current = state.pending;
+                state.pending = null;
+            }
+            LOGGER.info("子线程开始解析服务:{} 元数据信息", serviceName);
+            CompletableFuture<Void> sync;
+            try {
+                sync = syncServiceRuntimeInfo(serviceName);
+            } catch (RuntimeException e) {
+                LOGGER.error(serviceName + " 同步出错", e);
+                sync = CompletableFuture.completedFuture(null);
+            }
+            sync.whenComplete((r, e) -> {
+                current.complete(null);
+                synchronized (state) {
+                    if (state.pending != null) {
+                        submitSync(serviceName, state);
+                    } else {
+                        state.running = false;
+                    }
+                }
+            });
+        });
     }
 
     /**
      * 只获取指定的元数据信息
+     *
+     * @return 所有服务的元数据加载结束后完成
      */
-    private void filterServersList() {
-        caches.clear();
+    private CompletableFuture<Void> filterServersList() {
         try {
             List<String> children = zk.getChildren(Constants.SERVICE_RUNTIME_PATH, this);
 
             List<String> result = whitelist.isEmpty() ? children : children.stream().filter(whitelist::contains).collect(Collectors.toList());
             LOGGER.info("[filter service]:过滤元数据信息结果:" + result.toString());
+            Set<String> retained = new HashSet<>(result);
+            List<ServiceInfo> removed = new ArrayList<>();
+            caches.forEach((name, infos) -> {
+                if (!retained.contains(name)) {
+                    removed.addAll(infos);
+                }
+            });
+            caches.keySet().retainAll(retained);
+            fullNames.values().retainAll(retained);
+            onInstancesRemoved(removed);
+            ServiceCache.retainServices(result, needLoadUrl);
 
-            //线程池并行操作
-            int processor = Runtime.getRuntime().availableProcessors() >= 4 ? Runtime.getRuntime().availableProcessors() : 4;
-            ExecutorService executorService = Executors.newFixedThreadPool(processor);
-            LOGGER.info("获取所有runtime下面的节点信息，开始解析服务元信息,处理线程数量 {}", processor);
+            LOGGER.info("获取所有runtime下面的节点信息，开始解析服务元信息, 服务数量 {}", result.size());
 
             long beginTime = System.currentTimeMillis();
-            result.forEach(serviceName -> {
-                executorService.execute(() -> {
-                    LOGGER.info("子线程开始解析服务:{} 元数据信息", serviceName);
-                    syncServiceRuntimeInfo(serviceName);
-                });
-            });
-            executorService.shutdown();
-            executorService.awaitTermination(1, TimeUnit.HOURS);
-            //主线程继续
-            LOGGER.info("<<<<<<<<<< 子线程解析服务元数据结束,耗时:{} ms.  主线程继续执行 >>>>>>>>>>", (System.currentTimeMillis() - beginTime));
+            List<CompletableFuture<Void>> futures = new ArrayList<>(result.size());
+            result.forEach(serviceName -> futures.add(scheduleSync(serviceName)));
+            return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                    .whenComplete((r, e) -> LOGGER.info("<<<<<<<<<< 子线程解析服务元数据结束,耗时:{} ms. >>>>>>>>>>", (System.currentTimeMillis() - beginTime)));
         } catch (KeeperException.NoNodeException e) {
             ZkUtils.createPersistNodeOnly(Constants.SERVICE_RUNTIME_PATH, zk);
-            filterServersList();
+            return filterServersList();
         } catch (KeeperException | InterruptedException e) {
             LOGGER.error(e.getMessage(), e);
         }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * 获取服务调用配置(/soa/config/services 及其子节点), 并监听节点及子节点内容的变化
+     */
+    private void syncServiceConfig() {
+        try {
+            if (zk.exists(Constants.CONFIG_SERVICE_PATH, this) == null) {
+                //节点创建后会收到 NodeCreated 事件
+                LOGGER.info("{} 节点不存在, 不使用服务配置", Constants.CONFIG_SERVICE_PATH);
+                ServiceConfigCache.update(null, Collections.emptyMap());
+                return;
+            }
+            Map<String, String> serviceConfigs = readChildrenData(Constants.CONFIG_SERVICE_PATH);
+            ServiceConfigCache.update(readData(Constants.CONFIG_SERVICE_PATH), serviceConfigs);
+            LOGGER.info("获取服务配置成功, 配置了 {} 个服务", serviceConfigs.size());
+        } catch (KeeperException | InterruptedException e) {
+            LOGGER.error("获取服务配置失败", e);
+        }
+    }
+
+    /**
+     * 获取限流配置(/soa/config/freq 的子节点), 并监听子节点及其内容的变化
+     */
+    private void syncFreqConfig() {
+        try {
+            if (zk.exists(Constants.CONFIG_FREQ_PATH, this) == null) {
+                LOGGER.info("{} 节点不存在, 不限流", Constants.CONFIG_FREQ_PATH);
+                FreqControlCache.update(Collections.emptyMap());
+                return;
+            }
+            Map<String, String> freqConfigs = readChildrenData(Constants.CONFIG_FREQ_PATH);
+            FreqControlCache.update(freqConfigs);
+            LOGGER.info("获取限流配置成功, 配置了 {} 个服务", freqConfigs.size());
+        } catch (KeeperException | InterruptedException e) {
+            LOGGER.error("获取限流配置失败", e);
+        }
+    }
+
+    /**
+     * 获取路由配置(/soa/config/routes 的子节点), 并监听子节点及其内容的变化
+     */
+    private void syncRouteConfig() {
+        try {
+            if (zk.exists(Constants.CONFIG_ROUTER_PATH, this) == null) {
+                LOGGER.info("{} 节点不存在, 不使用网关路由", Constants.CONFIG_ROUTER_PATH);
+                RouteCache.update(Collections.emptyMap());
+                return;
+            }
+            Map<String, String> routeConfigs = readChildrenData(Constants.CONFIG_ROUTER_PATH);
+            RouteCache.update(routeConfigs);
+            LOGGER.info("获取路由配置成功, 配置了 {} 个服务", routeConfigs.size());
+        } catch (KeeperException | InterruptedException e) {
+            LOGGER.error("获取路由配置失败", e);
+        }
+    }
+
+    /**
+     * 读取所有子节点的内容并监听变化
+     *
+     * @return 子节点名称 -> 内容, 不包含内容为空的子节点
+     */
+    private Map<String, String> readChildrenData(String path) throws KeeperException, InterruptedException {
+        Map<String, String> result = new HashMap<>();
+        for (String child : zk.getChildren(path, this)) {
+            String data = readData(path + "/" + child);
+            if (data != null) {
+                result.put(child, data);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 读取节点内容并监听变化, 节点不存在或内容为空时返回 null
+     */
+    private String readData(String path) throws KeeperException, InterruptedException {
+        try {
+            byte[] data = zk.getData(path, this, null);
+            return data == null || data.length == 0 ? null : new String(data, StandardCharsets.UTF_8);
+        } catch (KeeperException.NoNodeException e) {
+            return null;
+        }
     }
 
     /**
@@ -268,26 +561,29 @@ public class ZookeeperClient implements Watcher {
      *
      * @param services
      */
-    private void registerServiceWhiteList(Set<String> services) {
+    private CompletableFuture<Void> registerServiceWhiteList(Set<String> services) {
         if (null != services) {
             services.forEach(s -> {
                 ZkUtils.createPersistNodeOnly(Constants.SERVICE_WITHELIST_PATH + "/" + s, zk);
             });
             whitelist.addAll(services);
-            syncWhiteList();
+            return syncWhiteList();
         }
+        return CompletableFuture.completedFuture(null);
     }
 
 
     /**
      * watch 白名单节点变化
+     *
+     * @return 白名单内服务的元数据加载结束后完成
      */
-    private void syncWhiteList() {
-
+    private CompletableFuture<Void> syncWhiteList() {
+        CompletableFuture<Void> loaded = CompletableFuture.completedFuture(null);
         try {
             List<String> children = zk.getChildren(Constants.SERVICE_WITHELIST_PATH, this);
             whitelist.addAll(children);
-            filterServersList();
+            loaded = filterServersList();
             LOGGER.info("当前白名单个数:[{}]", whitelist.size());
             LOGGER.info(">>>>>>>>>>>>>>>>>>");
             StringBuilder sb = new StringBuilder(256);
@@ -299,7 +595,7 @@ public class ZookeeperClient implements Watcher {
         } catch (Exception e) {
             LOGGER.error("获取服务白名单失败");
         }
-
+        return loaded;
     }
 
     /**
@@ -332,6 +628,38 @@ public class ZookeeperClient implements Watcher {
                 }
             }
         }
-        caches.put(serviceName, sinfos);
+        List<ServiceInfo> previous = caches.put(serviceName, sinfos);
+        fullNames.put(serviceName.substring(serviceName.lastIndexOf('.') + 1), serviceName);
+        if (previous != null) {
+            List<ServiceInfo> removed = new ArrayList<>();
+            for (ServiceInfo currentSinfo : previous) {
+                if (sinfos.stream().noneMatch(currentSinfo::equalTo)) {
+                    removed.add(currentSinfo);
+                }
+            }
+            onInstancesRemoved(removed);
+        }
+    }
+
+    /**
+     * 实例从实例列表中移除后, 若该 host:port 已不在任何服务的实例列表中(同一进程可能运行多个服务), 清理按实例记录的状态
+     */
+    private static void onInstancesRemoved(List<ServiceInfo> removed) {
+        if (removed.isEmpty()) {
+            return;
+        }
+        Set<String> alive = new HashSet<>();
+        for (List<ServiceInfo> infos : caches.values()) {
+            for (ServiceInfo info : infos) {
+                alive.add(info.host + ":" + info.port);
+            }
+        }
+        for (ServiceInfo info : removed) {
+            if (!alive.contains(info.host + ":" + info.port)) {
+                LOGGER.info("实例 {}:{} 已下线, 移除其耗时记录和 metadata 连接池", info.host, info.port);
+                InstanceSelectors.removeLatency(info.host, info.port);
+                MetadataUtils.removeSubPool(info.host, info.port);
+            }
+        }
     }
 }
@@ -0,0 +1,41 @@
+package com.github.dapeng.openapi.utils;
+
+/**
+ * 批量调用中的一个服务调用
+ *
+ * @see PostUtil#postBatch(java.util.List, javax.servlet.http.HttpServletRequest)
+ */
+public class BatchEntry {
+    private final String service;
+    private final String version;
+    private final String method;
+    private final String parameter;
+
+    public BatchEntry(String service, String version, String method, String parameter) {
+        this.service = service;
+        this.version = version;
+        this.method = method;
+        this.parameter = parameter;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getParameter() {
+        return parameter;
+    }
+
+    @Override
+    public String toString() {
+        return service + ":" + version + ":" + method;
+    }
+}
@@ -0,0 +1,130 @@
+package com.github.dapeng.openapi.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按服务的自适应并发限制(参考 Gradient2 算法)
+ * <p>
+ * 每个服务维护在途请求数和并发上限. 上限根据调用耗时调整: 短期平均耗时(shortRtt)相对长期平均耗时(longRtt)升高,
+ * 说明后端开始排队, 上限按比例收缩; 耗时平稳时上限以 sqrt(limit) 的速度增长. 超出上限的请求立即拒绝,
+ * 避免一个变慢的服务占满网关的全部线程.
+ * <p>
+ * 默认关闭, 通过 soa.openapi.concurrency.limit.enabled=true 开启;
+ * soa.openapi.concurrency.limit.initial/min/max 分别为初始上限(默认 20), 最小上限(默认 4), 最大上限(默认 1000)
+ */
+public final class ConcurrencyLimiter {
+
+    private static final boolean ENABLED = Boolean.parseBoolean(EnvUtil.get("soa.openapi.concurrency.limit.enabled", "false"));
+    private static final int INITIAL_LIMIT = EnvUtil.getInt("soa.openapi.concurrency.limit.initial", 20);
+    private static final int MIN_LIMIT = EnvUtil.getInt("soa.openapi.concurrency.limit.min", 4);
+    private static final int MAX_LIMIT = EnvUtil.getInt("soa.openapi.concurrency.limit.max", 1000);
+
+    /**
+     * 允许短期耗时超出长期耗时的比例, 在此范围内不收缩上限
+     */
+    private static final double RTT_TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+
+    private static final Map<String, ConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
+
+    private static final LongAdder rejected = new LongAdder();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private volatile int limit = INITIAL_LIMIT;
+
+    /**
+     * 保护以下字段, 只在 update 中读写
+     */
+    private final ReentrantLock updateLock = new ReentrantLock();
+    private double estimatedLimit = INITIAL_LIMIT;
+    private double shortRtt;
+    private double longRtt;
+
+    private ConcurrencyLimiter() {
+    }
+
+    /**
+     * @return 服务的限制器, 未开启时返回 null
+     */
+    static ConcurrencyLimiter of(String service) {
+        if (!ENABLED) {
+            return null;
+        }
+        ConcurrencyLimiter limiter = limiters.get(service);
+        return limiter != null ? limiter : limiters.computeIfAbsent(service, k -> new ConcurrencyLimiter());
+    }
+
+    /**
+     * @return 服务当前的并发上限, 未开启或者还没有调用时返回 -1
+     */
+    public static int getLimit(String service) {
+        ConcurrencyLimiter limiter = limiters.get(service);
+        return limiter == null ? -1 : limiter.limit;
+    }
+
+    public static int getInFlight(String service) {
+        ConcurrencyLimiter limiter = limiters.get(service);
+        return limiter == null ? 0 : limiter.inFlight.get();
+    }
+
+    /**
+     * @return 累计被拒绝的请求数
+     */
+    public static long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    boolean tryAcquire() {
+        if (inFlight.incrementAndGet() > limit) {
+            inFlight.decrementAndGet();
+            rejected.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 调用结束(无论成功失败)后释放, 并以本次耗时调整上限
+     *
+     * @param startNanos tryAcquire 成功后 System.nanoTime() 的值
+     */
+    void release(long startNanos) {
+        int current = inFlight.getAndDecrement();
+        //上限的调整只需要采样, 其他线程正在调整时直接丢弃本次耗时, 不在调用结束的路径上排队等锁
+        if (updateLock.tryLock()) {
+            try {
+                update(System.nanoTime() - startNanos, current);
+            } finally {
+                updateLock.unlock();
+            }
+        }
+    }
+
+    private void update(long rtt, int current) {
+        if (shortRtt == 0) {
+            shortRtt = rtt;
+            longRtt = rtt;
+            return;
+        }
+        shortRtt = shortRtt * 0.9 + rtt * 0.1;
+        longRtt = longRtt * 0.99 + rtt * 0.01;
+        //持续过载时长期耗时也会被拉高, 明显高于短期耗时后加速回落
+        if (longRtt > shortRtt * 2) {
+            longRtt *= 0.95;
+        }
+        //并发远未达到上限时耗时不能说明上限是否合适, 不调整
+        if (current < estimatedLimit / 2) {
+            return;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, RTT_TOLERANCE * longRtt / shortRtt));
+        double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+        newLimit = estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        estimatedLimit = Math.max(MIN_LIMIT, Math.min(MAX_LIMIT, newLimit));
+        limit = (int) estimatedLimit;
+    }
+}
@@ -27,4 +27,28 @@ public class EnvUtil {
         }
         return zkHost;
     }
+
+    /**
+     * 读取配置, 优先级: 环境变量(soa_xxx_yyy) > 系统属性(soa.xxx.yyy) > 默认值
+     */
+    public static String get(String key, String defaultValue) {
+        String value = System.getenv(key.replace('.', '_'));
+        if (value == null) {
+            value = System.getProperty(key);
+        }
+        return value == null ? defaultValue : value.trim();
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            LOGGER.error("invalid int config {}={}, use default: {}", key, value, defaultValue);
+            return defaultValue;
+        }
+    }
 }
@@ -0,0 +1,20 @@
+package com.github.dapeng.openapi.utils;
+
+import com.github.dapeng.registry.ServiceInfo;
+
+import java.util.List;
+
+/**
+ * 调用目标实例选择策略
+ *
+ * @see InstanceSelectors
+ */
+public interface InstanceSelector {
+
+    /**
+     * @param service    服务全限定名
+     * @param candidates 同一版本的可用实例, 不为空
+     * @return 选中的实例
+     */
+    ServiceInfo select(String service, List<ServiceInfo> candidates);
+}
@@ -0,0 +1,260 @@
+package com.github.dapeng.openapi.utils;
+
+import com.github.dapeng.core.SoaCode;
+import com.github.dapeng.core.SoaException;
+import com.github.dapeng.openapi.cache.RouteCache;
+import com.github.dapeng.openapi.cache.ZookeeperClient;
+import com.github.dapeng.registry.ServiceInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 网关侧的实例选择
+ * <p>
+ * 配置了 /soa/config/routes 路由规则的服务, 先按路由规则筛选实例.
+ * <p>
+ * 请求参数没有指定 calleeIp/calleePort 时, 按选择策略从 {@link ZookeeperClient#getServices()} 缓存的实例列表中选出调用目标.
+ * 在途请求数记录在 {@link ServiceInfo#getActiveCount()} 上(zk刷新实例列表时会保留), 调用耗时按实例记录指数加权平均(EWMA).
+ * <p>
+ * 通过 soa.openapi.instance.selector 配置: none(默认, 由 dapeng 客户端选择), leastActive, ewma, p2c;
+ * 也可以调用 {@link #setSelector(InstanceSelector)} 使用自定义策略
+ */
+public final class InstanceSelectors {
+    private static final Logger LOGGER = LoggerFactory.getLogger(InstanceSelectors.class);
+
+    private static final double EWMA_ALPHA = 0.2;
+    /**
+     * 没有任何耗时记录时使用的默认耗时(纳秒)
+     */
+    private static final double DEFAULT_LATENCY = EnvUtil.getInt("soa.openapi.instance.default.latency.ms", 100) * 1_000_000d;
+    /**
+     * 调用失败(异常或 dapeng 框架错误)时记录的最小耗时(纳秒). 失败通常很快返回, 不加惩罚时故障实例反而耗时最低
+     */
+    private static final double FAILURE_PENALTY = EnvUtil.getInt("soa.openapi.instance.failure.penalty.ms", 1000) * 1_000_000d;
+
+    /**
+     * 在途请求数最少的实例, 相同时随机
+     */
+    public static final InstanceSelector LEAST_ACTIVE = (service, candidates) -> {
+        ServiceInfo selected = null;
+        int least = Integer.MAX_VALUE;
+        int ties = 0;
+        for (ServiceInfo candidate : candidates) {
+            int active = candidate.getActiveCount().get();
+            if (active < least) {
+                least = active;
+                selected = candidate;
+                ties = 1;
+            } else if (active == least && ThreadLocalRandom.current().nextInt(++ties) == 0) {
+                selected = candidate;
+            }
+        }
+        return selected;
+    };
+
+    /**
+     * 预期耗时 (在途请求数 + 1) * EWMA耗时 最小的实例, 相同时随机.
+     * 还没有耗时记录的实例(刚启动的网关或新上线的实例)按其他候选实例的平均耗时计算, 预期耗时仍随在途请求数增长
+     */
+    public static final InstanceSelector EWMA_LATENCY = (service, candidates) -> {
+        double defaultLatency = meanLatency(candidates);
+        ServiceInfo selected = null;
+        double least = Double.MAX_VALUE;
+        int ties = 0;
+        for (ServiceInfo candidate : candidates) {
+            double load = load(candidate, defaultLatency);
+            if (load < least) {
+                least = load;
+                selected = candidate;
+                ties = 1;
+            } else if (load == least && ThreadLocalRandom.current().nextInt(++ties) == 0) {
+                selected = candidate;
+            }
+        }
+        return selected;
+    };
+
+    /**
+     * 随机选两个实例, 取预期耗时较小的一个. 避免所有网关线程同时涌向同一个"最优"实例
+     */
+    public static final InstanceSelector POWER_OF_TWO = (service, candidates) -> {
+        int size = candidates.size();
+        if (size == 1) {
+            return candidates.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+        ServiceInfo a = candidates.get(first);
+        ServiceInfo b = candidates.get(second);
+        double defaultLatency = meanLatency(Arrays.asList(a, b));
+        return load(a, defaultLatency) <= load(b, defaultLatency) ? a : b;
+    };
+
+    private static volatile InstanceSelector selector = fromConfig(EnvUtil.get("soa.openapi.instance.selector", "none"));
+
+    /**
+     * host -> port -> EWMA 耗时(纳秒, Double.doubleToLongBits)
+     */
+    private static final Map<String, Map<Integer, AtomicLong>> latencies = new ConcurrentHashMap<>();
+
+    private InstanceSelectors() {
+    }
+
+    /**
+     * @param instanceSelector 为 null 时不在网关选择实例
+     */
+    public static void setSelector(InstanceSelector instanceSelector) {
+        selector = instanceSelector;
+    }
+
+    /**
+     * @return 实例的 EWMA 耗时(毫秒), 没有调用记录时返回 0
+     */
+    public static double getLatencyMillis(String host, int port) {
+        AtomicLong ewma = latencyOf(host, port, false);
+        return ewma == null ? 0 : Double.longBitsToDouble(ewma.get()) / 1_000_000;
+    }
+
+    /**
+     * 先按 /soa/config/routes 的路由规则筛选实例, 再按选择策略选出调用目标;
+     * 命中路由规则但未配置策略时, 在路由结果中随机选择
+     *
+     * @return 选中的实例, 未配置策略且没有路由规则, 或者没有可用实例时返回 null
+     * @throws SoaException 命中的路由规则排除了全部实例, 不能绕过路由交给客户端选择
+     */
+    static ServiceInfo select(String service, String method, String version, Long userId, String callerMid) throws SoaException {
+        InstanceSelector current = selector;
+        if (current == null && !RouteCache.hasRoutes(service)) {
+            return null;
+        }
+        String fullName = fullNameOf(service);
+        List<ServiceInfo> instances = fullName == null ? null : ZookeeperClient.getServices().get(fullName);
+        if (instances == null || instances.isEmpty()) {
+            return null;
+        }
+        List<ServiceInfo> candidates = new ArrayList<>(instances.size());
+        for (ServiceInfo instance : instances) {
+            if (version.equals(instance.versionName)) {
+                candidates.add(instance);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        List<ServiceInfo> routed = RouteCache.route(fullName, method, userId, callerMid, candidates);
+        if (routed.isEmpty()) {
+            LOGGER.warn("{}:{}:{} 没有满足路由规则的实例", fullName, version, method);
+            throw new SoaException(SoaCode.NoMatchedService.getCode(), SoaCode.NoMatchedService.getMsg());
+        }
+        if (current == null) {
+            return routed == candidates ? null : routed.get(ThreadLocalRandom.current().nextInt(routed.size()));
+        }
+        return current.select(fullName, routed);
+    }
+
+    static void onStart(ServiceInfo instance) {
+        instance.getActiveCount().incrementAndGet();
+    }
+
+    /**
+     * @param startNanos 调用开始时 System.nanoTime() 的值
+     * @param failed     调用是否失败, 失败时按不低于 FAILURE_PENALTY 的耗时记录
+     */
+    static void onComplete(ServiceInfo instance, long startNanos, boolean failed) {
+        instance.getActiveCount().decrementAndGet();
+        double rtt = System.nanoTime() - startNanos;
+        if (failed) {
+            rtt = Math.max(rtt, FAILURE_PENALTY);
+        }
+        AtomicLong ewma = latencyOf(instance.host, instance.port, true);
+        while (true) {
+            long bits = ewma.get();
+            double current = Double.longBitsToDouble(bits);
+            double next = current == 0 ? rtt : current + EWMA_ALPHA * (rtt - current);
+            if (ewma.compareAndSet(bits, Double.doubleToLongBits(next))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 实例已经下线(不在任何服务的实例列表中)后移除其耗时记录
+     */
+    public static void removeLatency(String host, int port) {
+        latencies.computeIfPresent(host, (h, ports) -> {
+            ports.remove(port);
+            return ports.isEmpty() ? null : ports;
+        });
+    }
+
+    /**
+     * @param defaultLatency 实例没有耗时记录时使用的耗时
+     */
+    private static double load(ServiceInfo instance, double defaultLatency) {
+        double latency = latencyNanos(instance);
+        return (instance.getActiveCount().get() + 1) * (latency > 0 ? latency : defaultLatency);
+    }
+
+    /**
+     * @return 有耗时记录的候选实例的平均耗时, 都没有记录时返回 DEFAULT_LATENCY
+     */
+    private static double meanLatency(List<ServiceInfo> candidates) {
+        double sum = 0;
+        int sampled = 0;
+        for (ServiceInfo candidate : candidates) {
+            double latency = latencyNanos(candidate);
+            if (latency > 0) {
+                sum += latency;
+                sampled++;
+            }
+        }
+        return sampled == 0 ? DEFAULT_LATENCY : sum / sampled;
+    }
+
+    private static double latencyNanos(ServiceInfo instance) {
+        AtomicLong ewma = latencyOf(instance.host, instance.port, false);
+        return ewma == null ? 0 : Double.longBitsToDouble(ewma.get());
+    }
+
+    private static AtomicLong latencyOf(String host, int port, boolean create) {
+        Map<Integer, AtomicLong> ports = latencies.get(host);
+        AtomicLong ewma = ports == null ? null : ports.get(port);
+        if (ewma != null || !create) {
+            return ewma;
+        }
+        return latencies.computeIfAbsent(host, k -> new ConcurrentHashMap<>(4))
+                .computeIfAbsent(port, k -> new AtomicLong(Double.doubleToLongBits(0)));
+    }
+
+    private static String fullNameOf(String service) {
+        return service.indexOf('.') >= 0 ? service : ZookeeperClient.getFullName(service);
+    }
+
+    private static InstanceSelector fromConfig(String name) {
+        switch (name) {
+            case "leastActive":
+                return LEAST_ACTIVE;
+            case "ewma":
+                return EWMA_LATENCY;
+            case "p2c":
+                return POWER_OF_TWO;
+            case "none":
+                return null;
+            default:
+                LOGGER.error("unknown soa.openapi.instance.selector: {}, use none", name);
+                return null;
+        }
+    }
+}
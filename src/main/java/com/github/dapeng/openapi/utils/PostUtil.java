@@ -1,6 +1,5 @@
 package com.github.dapeng.openapi.utils;
 
-import com.github.dapeng.client.netty.JsonPost;
 import com.github.dapeng.core.InvocationContext;
 import com.github.dapeng.core.InvocationContextImpl;
 import com.github.dapeng.core.SoaCode;
@@ -9,15 +8,35 @@ import com.github.dapeng.core.enums.CodecProtocol;
 import com.github.dapeng.core.helper.DapengUtil;
 import com.github.dapeng.core.helper.IPUtils;
 import com.github.dapeng.core.helper.SoaSystemEnvProperties;
-import com.github.dapeng.json.OptimizedMetadata;
-import com.github.dapeng.openapi.cache.ServiceCache;
+import com.github.dapeng.openapi.cache.FreqControlCache;
+import com.github.dapeng.openapi.cache.ServiceConfigCache;
+import com.github.dapeng.registry.ServiceInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 /**
  * @author ever
@@ -25,6 +44,36 @@ import java.util.concurrent.Future;
 public class PostUtil {
     private static final Logger LOGGER = LoggerFactory.getLogger(PostUtil.class);
 
+    /**
+     * 触发 /soa/config/freq 限流时的错误码
+     */
+    private static final String FREQ_LIMITED_CODE = "Err-OpenApi-FreqLimited";
+    private static final String FREQ_LIMITED_MSG = "请求过于频繁，请稍后再试！";
+    /**
+     * 服务在途请求数超出自适应并发上限时的错误码
+     */
+    private static final String OVERLOAD_CODE = "Err-OpenApi-Overload";
+    private static final String OVERLOAD_MSG = "服务繁忙，请稍后再试！";
+    /**
+     * 读取请求体时预分配缓冲区的上限
+     */
+    private static final int MAX_INITIAL_BODY_BUFFER = 64 * 1024;
+    /**
+     * Servlet 异步上下文超时时的错误码
+     */
+    private static final String ASYNC_TIMEOUT_CODE = "Err-OpenApi-AsyncTimeout";
+    private static final String ASYNC_TIMEOUT_MSG = "请求超时，请稍后再试！";
+    /**
+     * 单次批量调用允许的最大调用数
+     */
+    /**
+     * 取调用端ip的请求头, 逗号分隔, 按顺序取第一个有值的. 网关直接对外时应配置为空, 避免调用端伪造请求头绕过 callerIp 限流
+     */
+    private static final String[] CLIENT_IP_HEADERS = splitHeaders(EnvUtil.get("soa.openapi.client.ip.headers", "X-Forwarded-For,X-Real-IP"));
+    private static final int MAX_BATCH_ENTRIES = EnvUtil.getInt("soa.openapi.batch.max.entries", 50);
+    private static final String BATCH_TOO_LARGE_CODE = "Err-OpenApi-BatchTooLarge";
+    private static final String BATCH_TOO_LARGE_MSG = "批量调用数超出上限！";
+
     public static String post(String service,
                               String version,
                               String method,
@@ -50,28 +99,29 @@ public class PostUtil {
                                boolean clearInvocationContext) {
         InvocationContextImpl invocationCtx = (InvocationContextImpl) createInvocationCtx(service, version, method, req);
 
-        OptimizedMetadata.OptimizedService bizService = ServiceCache.getService(service, version);
+        PreparedInvoker invoker = PreparedInvoker.of(service, version, method);
 
-        if (bizService == null) {
+        if (invoker == null) {
             LOGGER.error("bizService not found[service:" + service + ", version:" + version + "]");
-            return String.format("{\"responseCode\":\"%s\", \"responseMsg\":\"%s\", \"success\":\"%s\", \"status\":0}", SoaCode.NoMatchedService.getCode(), SoaCode.NoMatchedService.getMsg(), "{}");
+            return errorResponse(SoaCode.NoMatchedService.getCode(), SoaCode.NoMatchedService.getMsg());
         }
 
         fillInvocationCtx(invocationCtx, req);
 
-        JsonPost jsonPost = new JsonPost(service, version, method, true);
-
         try {
-            return jsonPost.callServiceMethod(parameter, bizService);
+            if (!acquireFreq(service, method, invocationCtx, req)) {
+                return errorResponse(FREQ_LIMITED_CODE, FREQ_LIMITED_MSG);
+            }
+            return call(invoker, service, version, method, parameter, invocationCtx);
         } catch (SoaException e) {
 
             LOGGER.error(e.getMsg(), e);
-            return String.format("{\"responseCode\":\"%s\", \"responseMsg\":\"%s\", \"success\":\"%s\", \"status\":0}", e.getCode(), e.getMsg(), "{}");
+            return errorResponse(e.getCode(), e.getMsg());
 
         } catch (Exception e) {
 
             LOGGER.error(e.getMessage(), e);
-            return String.format("{\"responseCode\":\"%s\", \"responseMsg\":\"%s\", \"success\":\"%s\", \"status\":0}", "9999", "系统繁忙，请稍后再试[9999]！", "{}");
+            return errorResponse("9999", "系统繁忙，请稍后再试[9999]！");
         } finally {
             if (clearInvocationContext) {
                 InvocationContextImpl.Factory.removeCurrentInstance();
@@ -79,6 +129,44 @@ public class PostUtil {
         }
     }
 
+    /**
+     * 流式版本: 从输入流(如 ServletInputStream)读取请求json, 响应按 UTF-8 分块编码后直接写入输出流(如 ServletOutputStream),
+     * 不经过 Writer 再复制一次. 输出流由调用端负责关闭
+     *
+     * @param body 请求json, 编码取自 req.getCharacterEncoding(), 默认 UTF-8
+     * @param out  响应输出流
+     */
+    public static void post(String service,
+                            String version,
+                            String method,
+                            InputStream body,
+                            OutputStream out,
+                            HttpServletRequest req) throws IOException {
+        String parameter = readBody(body, req.getContentLength(), requestCharset(req));
+        writeResponse(post(service, version, method, parameter, req), out);
+    }
+
+    /**
+     * 流式版本: 请求json来自 ByteBuffer
+     *
+     * @see #post(String, String, String, InputStream, OutputStream, HttpServletRequest)
+     */
+    public static void post(String service,
+                            String version,
+                            String method,
+                            ByteBuffer body,
+                            OutputStream out,
+                            HttpServletRequest req) throws IOException {
+        Charset charset = requestCharset(req);
+        String parameter;
+        if (body.hasArray()) {
+            parameter = new String(body.array(), body.arrayOffset() + body.position(), body.remaining(), charset);
+        } else {
+            parameter = charset.decode(body.duplicate()).toString();
+        }
+        writeResponse(post(service, version, method, parameter, req), out);
+    }
+
 
     /**
      * @param service
@@ -97,27 +185,28 @@ public class PostUtil {
                                            boolean clearInvocationContext) {
         InvocationContextImpl invocationCtx = (InvocationContextImpl) createInvocationCtx(service, version, method, req);
 
-        OptimizedMetadata.OptimizedService bizService = ServiceCache.getService(service, version);
+        PreparedInvoker invoker = PreparedInvoker.of(service, version, method);
 
-        if (bizService == null) {
+        if (invoker == null) {
             LOGGER.error("bizService not found[service:" + service + ", version:" + version + "]");
-            return CompletableFuture.completedFuture(String.format("{\"responseCode\":\"%s\", \"responseMsg\":\"%s\", \"success\":\"%s\", \"status\":0}", SoaCode.NoMatchedService.getCode(), SoaCode.NoMatchedService.getMsg(), "{}"));
+            return CompletableFuture.completedFuture(errorResponse(SoaCode.NoMatchedService.getCode(), SoaCode.NoMatchedService.getMsg()));
         }
         fillInvocationCtx(invocationCtx, req);
 
-        JsonPost jsonPost = new JsonPost(service, version, method, true);
-
         try {
-            return jsonPost.callServiceMethodAsync(parameter, bizService);
+            if (!acquireFreq(service, method, invocationCtx, req)) {
+                return CompletableFuture.completedFuture(errorResponse(FREQ_LIMITED_CODE, FREQ_LIMITED_MSG));
+            }
+            return callAsync(invoker, service, version, method, parameter, invocationCtx);
         } catch (SoaException e) {
 
             LOGGER.error(e.getMsg(), e);
-            return CompletableFuture.completedFuture(String.format("{\"responseCode\":\"%s\", \"responseMsg\":\"%s\", \"success\":\"%s\", \"status\":0}", e.getCode(), e.getMsg(), "{}"));
+            return CompletableFuture.completedFuture(errorResponse(e.getCode(), e.getMsg()));
 
         } catch (Exception e) {
 
             LOGGER.error(e.getMessage(), e);
-            return CompletableFuture.completedFuture(String.format("{\"responseCode\":\"%s\", \"responseMsg\":\"%s\", \"success\":\"%s\", \"status\":0}", "9999", "系统繁忙，请稍后再试[9999]！", "{}"));
+            return CompletableFuture.completedFuture(errorResponse("9999", "系统繁忙，请稍后再试[9999]！"));
         } finally {
             if (clearInvocationContext) {
                 InvocationContextImpl.Factory.removeCurrentInstance();
@@ -126,6 +215,417 @@ public class PostUtil {
     }
 
 
+    /**
+     * 基于 CompletableFuture 的异步调用, 调用线程不需要阻塞等待结果
+     * <p>
+     * InvocationContext 只在请求编码发送时读取, 发送在 callServiceMethodAsync 返回前已经完成,
+     * 所以发送后立即从当前线程移除(容器线程会被复用); 结果回调在其他线程执行, 不依赖线程上的 InvocationContext.
+     * 调用失败时 future 以 responseCode/responseMsg 格式的错误json正常完成
+     */
+    public static CompletableFuture<String> postAsync(String service,
+                                                      String version,
+                                                      String method,
+                                                      String parameter,
+                                                      HttpServletRequest req) {
+        Future<String> future = postAsync(service, version, method, parameter, req, true);
+        return toCompletableFuture(future).exceptionally(PostUtil::asyncErrorResponse);
+    }
+
+    /**
+     * Servlet 3.1 异步调用: 结果返回后写入 AsyncContext 的响应并结束请求, 容器线程无需等待
+     * <p>
+     * 结果回调可能在客户端的 netty IO 线程上执行, 阻塞的响应写出通过 asyncContext.start 交给容器线程.
+     * 异步上下文超时时由 AsyncListener 写出超时错误json; 超时与正常返回只有先到的一方会写出响应
+     *
+     * @param asyncContext 调用端 req.startAsync() 得到的异步上下文
+     */
+    public static CompletableFuture<String> postAsync(AsyncContext asyncContext,
+                                                      String service,
+                                                      String version,
+                                                      String method,
+                                                      String parameter) {
+        HttpServletRequest req = (HttpServletRequest) asyncContext.getRequest();
+        AtomicBoolean responded = new AtomicBoolean(false);
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                if (responded.compareAndSet(false, true)) {
+                    LOGGER.warn("异步请求超时[service:" + service + ", method:" + method + "]");
+                    writeAsyncResponse(asyncContext, errorResponse(ASYNC_TIMEOUT_CODE, ASYNC_TIMEOUT_MSG), service, method);
+                }
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                if (responded.compareAndSet(false, true)) {
+                    LOGGER.error("异步请求异常结束[service:" + service + ", method:" + method + "]", event.getThrowable());
+                }
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+
+        return postAsync(service, version, method, parameter, req).whenComplete((response, ex) -> {
+            if (!responded.compareAndSet(false, true)) {
+                LOGGER.warn("异步上下文已超时或出错, 丢弃响应[service:" + service + ", method:" + method + "]");
+                return;
+            }
+            try {
+                asyncContext.start(() -> writeAsyncResponse(asyncContext, response, service, method));
+            } catch (IllegalStateException e) {
+                LOGGER.error("异步上下文已结束, 丢弃响应[service:" + service + ", method:" + method + "]", e);
+            }
+        });
+    }
+
+    private static void writeAsyncResponse(AsyncContext asyncContext, String response, String service, String method) {
+        try {
+            ServletResponse resp = asyncContext.getResponse();
+            resp.setContentType("application/json;charset=utf-8");
+            writeResponse(response, resp.getOutputStream());
+        } catch (IOException | IllegalStateException e) {
+            LOGGER.error("写入异步响应失败[service:" + service + ", method:" + method + "]", e);
+        } finally {
+            try {
+                asyncContext.complete();
+            } catch (IllegalStateException e) {
+                LOGGER.warn("异步上下文已结束[service:" + service + ", method:" + method + "]: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 批量调用: 一次http请求中包含多个互不依赖的服务调用
+     * <p>
+     * 每个调用依次创建自己的 InvocationContext 并异步发出, 所有调用同时进行, 全部返回后按请求顺序返回结果.
+     * 单个调用失败不影响其他调用, 其结果为 responseCode/responseMsg 格式的错误json.
+     * 调用端预先设置在当前线程上的 InvocationContext 在第一个调用前记录下来, 对每个调用都生效.
+     * 调用数超过 soa.openapi.batch.max.entries 时整批拒绝
+     *
+     * @param entries 服务调用列表
+     * @param req     公共的请求参数(calleeIp, userId 等)对每个调用都生效
+     * @return 与 entries 顺序一致的响应json
+     */
+    public static List<String> postBatch(List<BatchEntry> entries, HttpServletRequest req) {
+        if (entries.size() > MAX_BATCH_ENTRIES) {
+            InvocationContextImpl.Factory.removeCurrentInstance();
+            LOGGER.error("batch entries {} exceeds the limit {}", entries.size(), MAX_BATCH_ENTRIES);
+            String error = errorResponse(BATCH_TOO_LARGE_CODE, BATCH_TOO_LARGE_MSG);
+            return new ArrayList<>(Collections.nCopies(entries.size(), error));
+        }
+
+        Consumer<InvocationContext> preset = presetOf(InvocationContextImpl.Factory.currentInstance());
+        List<CompletableFuture<String>> futures = new ArrayList<>(entries.size());
+        for (BatchEntry entry : entries) {
+            if (entry == null || entry.getService() == null || entry.getVersion() == null || entry.getMethod() == null) {
+                LOGGER.error("invalid batch entry: " + entry);
+                futures.add(CompletableFuture.completedFuture(errorResponse(SoaCode.NoMatchedService.getCode(), SoaCode.NoMatchedService.getMsg())));
+                continue;
+            }
+            //上一个调用发出后已移除线程上的 InvocationContext, 这里取到的是新的实例
+            preset.accept(InvocationContextImpl.Factory.currentInstance());
+            futures.add(postAsync(entry.getService(), entry.getVersion(), entry.getMethod(), entry.getParameter(), req));
+        }
+        InvocationContextImpl.Factory.removeCurrentInstance();
+
+        List<String> results = new ArrayList<>(futures.size());
+        for (CompletableFuture<String> future : futures) {
+            results.add(future.join());
+        }
+        return results;
+    }
+
+    /**
+     * 记录调用端预先设置的 InvocationContext 字段, 返回把这些字段设置到新实例上的操作.
+     * serviceName/methodName/callerMid 等由每个调用自己设置, 不需要记录
+     */
+    private static Consumer<InvocationContext> presetOf(InvocationContext ctx) {
+        Optional<Long> sessionTid = ctx.sessionTid();
+        Optional<Integer> timeout = ctx.timeout();
+        Optional<Integer> calleeIp = ctx.calleeIp();
+        Optional<Integer> calleePort = ctx.calleePort();
+        Optional<Long> userId = ctx.userId();
+        Optional<Long> operatorId = ctx.operatorId();
+        Map<String, String> cookies = ctx.cookies() == null ? Collections.emptyMap() : new HashMap<>(ctx.cookies());
+        return target -> {
+            sessionTid.ifPresent(target::sessionTid);
+            timeout.ifPresent(target::timeout);
+            calleeIp.ifPresent(target::calleeIp);
+            calleePort.ifPresent(target::calleePort);
+            userId.ifPresent(target::userId);
+            operatorId.ifPresent(target::operatorId);
+            if (!cookies.isEmpty()) {
+                target.cookies(new HashMap<>(cookies));
+            }
+        };
+    }
+
+    /**
+     * 网关限流检查, 在编码和发送请求之前执行
+     */
+    private static boolean acquireFreq(String service, String method, InvocationContext invocationCtx, HttpServletRequest req) {
+        return FreqControlCache.tryAcquire(service, method, invocationCtx.callerMid().orElse(null),
+                invocationCtx.userId().orElse(null), clientIp(req));
+    }
+
+    private static String[] splitHeaders(String config) {
+        String trimmed = config.trim();
+        return trimmed.isEmpty() ? new String[0] : trimmed.split("\\s*,\\s*");
+    }
+
+    /**
+     * 调用端的真实ip. 网关通常部署在 LB/nginx 之后, 依次取 CLIENT_IP_HEADERS 中第一个有值的请求头
+     * (X-Forwarded-For 取第一个地址), 都没有时取 remoteAddr
+     */
+    private static String clientIp(HttpServletRequest req) {
+        for (String header : CLIENT_IP_HEADERS) {
+            String value = req.getHeader(header);
+            if (value != null && !value.isEmpty() && !"unknown".equalsIgnoreCase(value)) {
+                int comma = value.indexOf(',');
+                return (comma >= 0 ? value.substring(0, comma) : value).trim();
+            }
+        }
+        return req.getRemoteAddr();
+    }
+
+    /**
+     * 请求参数未指定 calleeIp 时, 由网关按路由规则和 soa.openapi.instance.selector 选择调用目标
+     *
+     * @return 选中的实例, 未选择时返回 null
+     * @throws SoaException 路由规则排除了全部实例
+     */
+    private static ServiceInfo selectInstance(String service, String version, InvocationContext invocationCtx) throws SoaException {
+        if (invocationCtx.calleeIp().isPresent()) {
+            return null;
+        }
+        ServiceInfo target = InstanceSelectors.select(service, invocationCtx.methodName(), version,
+                invocationCtx.userId().orElse(null), invocationCtx.callerMid().orElse(null));
+        if (target != null) {
+            invocationCtx.calleeIp(IPUtils.transferIp(target.host));
+            invocationCtx.calleePort(target.port);
+        }
+        return target;
+    }
+
+    /**
+     * 撤销 selectInstance 设置的调用目标. 调用端不清理 InvocationContext 时, 下一次调用需要重新选择而不是沿用这次的实例
+     */
+    private static void restoreCallee(InvocationContext invocationCtx, Integer calleePort) {
+        invocationCtx.calleeIp(null);
+        invocationCtx.calleePort(calleePort);
+    }
+
+    /**
+     * 实际的同步调用, 依次经过响应缓存和相同请求合并(均需按方法开启)
+     */
+    private static String call(PreparedInvoker invoker, String service, String version, String method,
+                               String parameter, InvocationContext invocationCtx) throws Exception {
+        long cacheTtl = ResponseCache.ttlMillis(service, method);
+        ResponseCache.Key cacheKey = null;
+        if (cacheTtl > 0) {
+            cacheKey = ResponseCache.key(service, version, method, parameter, invocationCtx);
+            String cached = ResponseCache.get(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        String response;
+        if (SingleFlight.isEnabled(service, method)) {
+            response = SingleFlight.await(SingleFlight.share(service, version, method, parameter, invocationCtx,
+                    () -> CompletableFuture.completedFuture(limitedSend(invoker, service, version, parameter, invocationCtx))));
+        } else {
+            response = limitedSend(invoker, service, version, parameter, invocationCtx);
+        }
+
+        if (cacheKey != null) {
+            ResponseCache.put(cacheKey, response, cacheTtl);
+        }
+        return response;
+    }
+
+    /**
+     * 占用并发限制后发出同步调用. 开启相同请求合并时只由发起调用的请求执行, 共享结果的请求不占用并发数
+     */
+    private static String limitedSend(PreparedInvoker invoker, String service, String version, String parameter,
+                                      InvocationContext invocationCtx) throws Exception {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.of(service);
+        if (limiter == null) {
+            return send(invoker, service, version, parameter, invocationCtx);
+        }
+        if (!limiter.tryAcquire()) {
+            return overloadResponse(service);
+        }
+        long startNanos = System.nanoTime();
+        try {
+            return send(invoker, service, version, parameter, invocationCtx);
+        } finally {
+            limiter.release(startNanos);
+        }
+    }
+
+    /**
+     * 选择实例并发出同步调用. 开启相同请求合并时只由发起调用的请求执行, 共享结果的请求不会选择实例
+     */
+    private static String send(PreparedInvoker invoker, String service, String version, String parameter,
+                               InvocationContext invocationCtx) throws Exception {
+        Integer calleePort = invocationCtx.calleePort().orElse(null);
+        //在查询响应缓存之后选择实例, 缓存key中的 callee 只包含调用端指定的目标
+        ServiceInfo target = selectInstance(service, version, invocationCtx);
+        if (target == null) {
+            return invoker.jsonPost.callServiceMethod(parameter, invoker.bizService);
+        }
+        long startNanos = System.nanoTime();
+        InstanceSelectors.onStart(target);
+        String response = null;
+        try {
+            response = invoker.jsonPost.callServiceMethod(parameter, invoker.bizService);
+            return response;
+        } finally {
+            InstanceSelectors.onComplete(target, startNanos, isCallFailure(response));
+            restoreCallee(invocationCtx, calleePort);
+        }
+    }
+
+    /**
+     * 调用是否因为实例或连接的问题失败: 没有返回结果, 或者返回 dapeng 框架错误(Err-Core-xxx, 例如超时, 连接失败).
+     * 业务错误说明实例正常处理了请求, 不算失败
+     */
+    private static boolean isCallFailure(String response) {
+        return response == null || response.contains("\"responseCode\":\"Err-Core-");
+    }
+
+    /**
+     * 实际的异步调用
+     *
+     * @see #call(PreparedInvoker, String, String, String, String, InvocationContext)
+     */
+    private static Future<String> callAsync(PreparedInvoker invoker, String service, String version, String method,
+                                            String parameter, InvocationContext invocationCtx) throws Exception {
+        long cacheTtl = ResponseCache.ttlMillis(service, method);
+        ResponseCache.Key cacheKey = null;
+        if (cacheTtl > 0) {
+            cacheKey = ResponseCache.key(service, version, method, parameter, invocationCtx);
+            String cached = ResponseCache.get(cacheKey);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+
+        Future<String> response;
+        if (SingleFlight.isEnabled(service, method)) {
+            response = SingleFlight.share(service, version, method, parameter, invocationCtx,
+                    () -> toCompletableFuture(limitedSendAsync(invoker, service, version, parameter, invocationCtx)));
+        } else {
+            response = limitedSendAsync(invoker, service, version, parameter, invocationCtx);
+        }
+
+        if (cacheKey == null) {
+            return response;
+        }
+        ResponseCache.Key key = cacheKey;
+        CompletableFuture<String> future = toCompletableFuture(response);
+        future.thenAccept(r -> ResponseCache.put(key, r, cacheTtl));
+        return future;
+    }
+
+    /**
+     * @see #limitedSend(PreparedInvoker, String, String, String, InvocationContext)
+     */
+    private static Future<String> limitedSendAsync(PreparedInvoker invoker, String service, String version, String parameter,
+                                                   InvocationContext invocationCtx) throws Exception {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.of(service);
+        if (limiter == null) {
+            return sendAsync(invoker, service, version, parameter, invocationCtx);
+        }
+        if (!limiter.tryAcquire()) {
+            return CompletableFuture.completedFuture(overloadResponse(service));
+        }
+        long startNanos = System.nanoTime();
+        CompletableFuture<String> future;
+        try {
+            future = toCompletableFuture(sendAsync(invoker, service, version, parameter, invocationCtx));
+        } catch (Exception e) {
+            limiter.release(startNanos);
+            throw e;
+        }
+        future.whenComplete((r, e) -> limiter.release(startNanos));
+        return future;
+    }
+
+    /**
+     * 选择实例并发出异步调用, 请求在 callServiceMethodAsync 返回前已经发出, 返回后即可撤销选择的调用目标
+     *
+     * @see #send(PreparedInvoker, String, String, String, InvocationContext)
+     */
+    private static Future<String> sendAsync(PreparedInvoker invoker, String service, String version, String parameter,
+                                            InvocationContext invocationCtx) throws Exception {
+        Integer calleePort = invocationCtx.calleePort().orElse(null);
+        ServiceInfo target = selectInstance(service, version, invocationCtx);
+        if (target == null) {
+            return invoker.jsonPost.callServiceMethodAsync(parameter, invoker.bizService);
+        }
+        long startNanos = System.nanoTime();
+        InstanceSelectors.onStart(target);
+        CompletableFuture<String> future;
+        try {
+            future = toCompletableFuture(invoker.jsonPost.callServiceMethodAsync(parameter, invoker.bizService));
+        } catch (Exception e) {
+            InstanceSelectors.onComplete(target, startNanos, true);
+            throw e;
+        } finally {
+            restoreCallee(invocationCtx, calleePort);
+        }
+        future.whenComplete((r, e) -> InstanceSelectors.onComplete(target, startNanos, e != null || isCallFailure(r)));
+        return future;
+    }
+
+    /**
+     * responseCode/responseMsg 格式的错误json
+     */
+    private static String errorResponse(String code, String msg) {
+        return String.format("{\"responseCode\":\"%s\", \"responseMsg\":\"%s\", \"success\":\"%s\", \"status\":0}", code, msg, "{}");
+    }
+
+    private static String overloadResponse(String service) {
+        LOGGER.warn("{} 在途请求数超出并发上限 {}, 拒绝请求", service, ConcurrencyLimiter.getLimit(service));
+        return errorResponse(OVERLOAD_CODE, OVERLOAD_MSG);
+    }
+
+    /**
+     * JsonPost.callServiceMethodAsync 返回的是 CompletableFuture, 这里只做类型转换.
+     * 其他 Future 实现无法在不占用线程阻塞等待的情况下转换, 直接以异常结束
+     */
+    @SuppressWarnings("unchecked")
+    private static CompletableFuture<String> toCompletableFuture(Future<String> future) {
+        if (future instanceof CompletableFuture) {
+            return (CompletableFuture<String>) future;
+        }
+        CompletableFuture<String> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException("unsupported future type: " + future.getClass().getName()));
+        return failed;
+    }
+
+    private static String asyncErrorResponse(Throwable ex) {
+        Throwable cause = ex;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof SoaException) {
+            SoaException e = (SoaException) cause;
+            LOGGER.error(e.getMsg(), e);
+            return errorResponse(e.getCode(), e.getMsg());
+        }
+        LOGGER.error(cause.getMessage(), cause);
+        return errorResponse("9999", "系统繁忙，请稍后再试[9999]！");
+    }
+
     private static InvocationContext createInvocationCtx(String service,
                                                          String version,
                                                          String method,
@@ -139,8 +639,8 @@ public class PostUtil {
             invocationCtx.sessionTid(DapengUtil.generateTid());
         }
         if (!invocationCtx.timeout().isPresent()) {
-            //设置请求超时时间,从环境变量获取
-            long timeOut = getEnvTimeOut();
+            //设置请求超时时间, 优先使用 /soa/config/services 中的方法或服务配置, 未配置时从环境变量获取
+            long timeOut = ServiceConfigCache.getTimeout(service, method, getEnvTimeOut());
             if (timeOut > 0) {
                 invocationCtx.timeout((int) timeOut);
             }
@@ -176,6 +676,42 @@ public class PostUtil {
     }
 
 
+    private static Charset requestCharset(HttpServletRequest req) {
+        String encoding = req.getCharacterEncoding();
+        return encoding == null ? StandardCharsets.UTF_8 : Charset.forName(encoding);
+    }
+
+    /**
+     * 按 Content-Length 预分配(最多 MAX_INITIAL_BODY_BUFFER, Content-Length 由客户端提供, 不可信), 按实际读取的数据扩容,
+     * 读取完成后只解码一次
+     */
+    private static String readBody(InputStream in, int contentLength, Charset charset) throws IOException {
+        byte[] buffer = new byte[contentLength > 0 ? Math.min(contentLength, MAX_INITIAL_BODY_BUFFER) : 4096];
+        int length = 0;
+        int n;
+        while ((n = in.read(buffer, length, buffer.length - length)) != -1) {
+            length += n;
+            if (length == buffer.length) {
+                int next = in.read();
+                if (next == -1) {
+                    break;
+                }
+                buffer = Arrays.copyOf(buffer, buffer.length << 1);
+                buffer[length++] = (byte) next;
+            }
+        }
+        return new String(buffer, 0, length, charset);
+    }
+
+    /**
+     * OutputStreamWriter 内部按固定大小的缓冲区分块编码, 不会为整个响应生成一份 byte[]
+     */
+    private static void writeResponse(String response, OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        writer.write(response);
+        writer.flush();
+    }
+
     private static int getEnvTimeOut() {
         return (int) SoaSystemEnvProperties.SOA_SERVICE_TIMEOUT;
     }
@@ -0,0 +1,88 @@
+package com.github.dapeng.openapi.utils;
+
+import com.github.dapeng.client.netty.JsonPost;
+import com.github.dapeng.json.OptimizedMetadata;
+import com.github.dapeng.openapi.cache.ServiceCache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 预先准备好的方法调用器, 按 service -> version -> method 缓存
+ * <p>
+ * 缓存已解析的 {@link OptimizedMetadata.OptimizedService} 和 {@link JsonPost}(构建时需要向连接池注册客户端信息),
+ * 避免每个请求都重复构建. {@link ServiceCache} 的快照版本变化后, 第一次使用时会校验元数据是否已被替换, 替换则重新构建.
+ */
+final class PreparedInvoker {
+
+    private static final int MAX_INVOKERS = EnvUtil.getInt("soa.openapi.invoker.cache.size", 4096);
+
+    private static final ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, PreparedInvoker>>> invokers = new ConcurrentHashMap<>();
+
+    private static final AtomicInteger invokerCount = new AtomicInteger();
+
+    final OptimizedMetadata.OptimizedService bizService;
+    final JsonPost jsonPost;
+    /**
+     * 最近一次确认元数据有效时的快照版本
+     */
+    private volatile long snapshotVersion;
+
+    private PreparedInvoker(OptimizedMetadata.OptimizedService bizService, JsonPost jsonPost, long snapshotVersion) {
+        this.bizService = bizService;
+        this.jsonPost = jsonPost;
+        this.snapshotVersion = snapshotVersion;
+    }
+
+    /**
+     * @return 调用器, 服务元数据不存在时返回null
+     */
+    static PreparedInvoker of(String service, String version, String method) {
+        ConcurrentMap<String, ConcurrentMap<String, PreparedInvoker>> versions = invokers.get(service);
+        ConcurrentMap<String, PreparedInvoker> methods = versions == null ? null : versions.get(version);
+        PreparedInvoker invoker = methods == null ? null : methods.get(method);
+        //先读版本号再查元数据, 查询之后发生的替换会在下一次调用时校验
+        long currentVersion = ServiceCache.getSnapshotVersion();
+        if (invoker != null && invoker.snapshotVersion == currentVersion) {
+            return invoker;
+        }
+
+        OptimizedMetadata.OptimizedService bizService = ServiceCache.getService(service, version);
+        if (bizService == null) {
+            if (invoker != null && methods.remove(method, invoker)) {
+                invokerCount.decrementAndGet();
+            }
+            return null;
+        }
+        if (invoker != null && invoker.bizService == bizService) {
+            invoker.snapshotVersion = currentVersion;
+            return invoker;
+        }
+
+        PreparedInvoker prepared = new PreparedInvoker(bizService, new JsonPost(service, version, method, true), currentVersion);
+        if (methods == null) {
+            //只为存在的服务建立索引
+            methods = methodsOf(service, version);
+        }
+        if (invoker != null) {
+            methods.replace(method, invoker, prepared);
+        } else if (invokerCount.get() < MAX_INVOKERS && methods.putIfAbsent(method, prepared) == null) {
+            //超过上限(例如大量不存在的方法名)时不再缓存, 只在本次请求中使用
+            invokerCount.incrementAndGet();
+        }
+        return prepared;
+    }
+
+    private static ConcurrentMap<String, PreparedInvoker> methodsOf(String service, String version) {
+        ConcurrentMap<String, ConcurrentMap<String, PreparedInvoker>> versions = invokers.get(service);
+        if (versions == null) {
+            versions = invokers.computeIfAbsent(service, k -> new ConcurrentHashMap<>(4));
+        }
+        ConcurrentMap<String, PreparedInvoker> methods = versions.get(version);
+        if (methods == null) {
+            methods = versions.computeIfAbsent(version, k -> new ConcurrentHashMap<>(16));
+        }
+        return methods;
+    }
+}
@@ -0,0 +1,268 @@
+package com.github.dapeng.openapi.utils;
+
+import com.github.dapeng.core.InvocationContext;
+import com.github.dapeng.openapi.cache.ServiceConfigCache;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 幂等读方法的响应缓存
+ * <p>
+ * 只缓存在 /soa/config/services 中配置了 cache 时长的方法, 例如:
+ * <pre>
+ * cache/0,getSkuPrice:30s,listDictionary:5m;
+ * </pre>
+ * key 包含 service, version, method, 请求参数以及会影响返回结果的调用上下文(userId, operatorId, callerMid, calleeIp, calleePort, cookies).
+ * 总条目数由 soa.openapi.response.cache.size 限制(默认 10000), 响应总大小由 soa.openapi.response.cache.bytes 限制
+ * (默认 64MB, 按字符数*2估算), 任一超出后按写入顺序淘汰; 单个响应超过总大小的 1/16 时不缓存. 过期条目在读取时移除.
+ * 只缓存调用成功的响应, "status":0 的错误json不会被缓存.
+ */
+public final class ResponseCache {
+
+    private static final int MAX_SIZE = EnvUtil.getInt("soa.openapi.response.cache.size", 10000);
+    private static final long MAX_BYTES = EnvUtil.getInt("soa.openapi.response.cache.bytes", 64 * 1024 * 1024);
+
+    private static final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+    /**
+     * 写入顺序, 用于超出容量时淘汰最早写入的条目
+     */
+    private static final Queue<Entry> insertionOrder = new ConcurrentLinkedQueue<>();
+    /**
+     * insertionOrder 的长度, ConcurrentLinkedQueue.size() 需要遍历整个队列
+     */
+    private static final AtomicInteger insertionOrderSize = new AtomicInteger();
+    /**
+     * entries 中所有响应的估算大小
+     */
+    private static final AtomicLong totalBytes = new AtomicLong();
+    /**
+     * 同时只提交一个队列清理任务
+     */
+    private static final AtomicBoolean purging = new AtomicBoolean(false);
+
+    private static class PurgerHolder {
+        private static final ExecutorService PURGER = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "openapi-response-cache-purge");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+
+    private ResponseCache() {
+    }
+
+    public static long getHitCount() {
+        return hits.sum();
+    }
+
+    public static long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return 因容量不足被淘汰的条目数
+     */
+    public static long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public static int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return 当前缓存响应的估算大小(字节)
+     */
+    public static long bytes() {
+        return totalBytes.get();
+    }
+
+    public static void clear() {
+        entries.clear();
+        insertionOrder.clear();
+        insertionOrderSize.set(0);
+        totalBytes.set(0);
+    }
+
+    /**
+     * @return 方法的缓存时长(毫秒), 未开启缓存时返回 0
+     */
+    static long ttlMillis(String service, String method) {
+        return ServiceConfigCache.getMillis(service, method, ServiceConfigCache.KEY_CACHE, 0);
+    }
+
+    static Key key(String service, String version, String method, String parameter, InvocationContext ctx) {
+        return new Key(service, version, method, parameter,
+                ctx.userId().orElse(null), ctx.operatorId().orElse(null), ctx.callerMid().orElse(null),
+                ctx.calleeIp().orElse(null), ctx.calleePort().orElse(null), ctx.cookies());
+    }
+
+    static String get(Key key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            if (entry.expireAt - System.currentTimeMillis() > 0) {
+                hits.increment();
+                return entry.response;
+            }
+            remove(entry);
+        }
+        misses.increment();
+        return null;
+    }
+
+    static void put(Key key, String response, long ttlMillis) {
+        if (!isSuccess(response)) {
+            return;
+        }
+        Entry entry = new Entry(key, response, System.currentTimeMillis() + ttlMillis);
+        if (entry.bytes > MAX_BYTES >> 4) {
+            return;
+        }
+        Entry previous = entries.put(key, entry);
+        totalBytes.addAndGet(entry.bytes);
+        if (previous != null) {
+            totalBytes.addAndGet(-previous.bytes);
+        }
+        insertionOrder.offer(entry);
+        insertionOrderSize.incrementAndGet();
+        while (entries.size() > MAX_SIZE || totalBytes.get() > MAX_BYTES) {
+            Entry eldest = insertionOrder.poll();
+            if (eldest == null) {
+                break;
+            }
+            insertionOrderSize.decrementAndGet();
+            if (remove(eldest)) {
+                evictions.increment();
+            }
+        }
+        //队列中可能残留已被覆盖或过期移除的条目, 数量过多时交给后台线程清理
+        if (insertionOrderSize.get() > MAX_SIZE << 1) {
+            schedulePurge();
+        }
+    }
+
+    private static boolean remove(Entry entry) {
+        if (entries.remove(entry.key, entry)) {
+            totalBytes.addAndGet(-entry.bytes);
+            return true;
+        }
+        return false;
+    }
+
+    private static void schedulePurge() {
+        if (purging.compareAndSet(false, true)) {
+            try {
+                PurgerHolder.PURGER.execute(() -> {
+                    try {
+                        Iterator<Entry> it = insertionOrder.iterator();
+                        while (it.hasNext()) {
+                            Entry e = it.next();
+                            if (entries.get(e.key) != e) {
+                                it.remove();
+                                insertionOrderSize.decrementAndGet();
+                            }
+                        }
+                    } finally {
+                        purging.set(false);
+                    }
+                });
+            } catch (RuntimeException e) {
+                purging.set(false);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * JsonPost 以 doNotThrowError 方式调用, 服务端异常与网关自身的错误一样以 "status":0 结尾的错误json返回
+     */
+    private static boolean isSuccess(String response) {
+        return response != null && !response.endsWith("\"status\":0}");
+    }
+
+    private static final class Entry {
+        final Key key;
+        final String response;
+        final long expireAt;
+        /**
+         * 响应的估算大小(UTF-16 每个字符 2 字节)
+         */
+        final long bytes;
+
+        Entry(Key key, String response, long expireAt) {
+            this.key = key;
+            this.response = response;
+            this.expireAt = expireAt;
+            this.bytes = (long) response.length() << 1;
+        }
+    }
+
+    static final class Key {
+        private final String service;
+        private final String version;
+        private final String method;
+        private final String parameter;
+        private final Long userId;
+        private final Long operatorId;
+        private final String callerMid;
+        private final Integer calleeIp;
+        private final Integer calleePort;
+        private final Map<String, String> cookies;
+        private final int hash;
+
+        Key(String service, String version, String method, String parameter, Long userId, Long operatorId,
+            String callerMid, Integer calleeIp, Integer calleePort, Map<String, String> cookies) {
+            this.service = service;
+            this.version = version;
+            this.method = method;
+            this.parameter = parameter;
+            this.userId = userId;
+            this.operatorId = operatorId;
+            this.callerMid = callerMid;
+            this.calleeIp = calleeIp;
+            this.calleePort = calleePort;
+            //复制一份, 避免之后对调用上下文 cookies 的修改改变已缓存 key 的内容
+            this.cookies = cookies == null || cookies.isEmpty() ? null : Collections.unmodifiableMap(new HashMap<>(cookies));
+            this.hash = Objects.hash(service, version, method, parameter, userId, operatorId, callerMid,
+                    calleeIp, calleePort, this.cookies);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && service.equals(other.service) && version.equals(other.version)
+                    && method.equals(other.method) && Objects.equals(parameter, other.parameter)
+                    && Objects.equals(userId, other.userId) && Objects.equals(operatorId, other.operatorId)
+                    && Objects.equals(callerMid, other.callerMid) && Objects.equals(calleeIp, other.calleeIp)
+                    && Objects.equals(calleePort, other.calleePort) && Objects.equals(cookies, other.cookies);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.github.dapeng.openapi.utils;
+
+import com.github.dapeng.core.InvocationContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 相同请求合并(single-flight)
+ * <p>
+ * 对开启的方法, service, version, method, parameter 完全相同且同时在途的请求只会向后端发出一次, 所有请求共享这次调用的结果.
+ * 调用结束后立即移除, 不做任何缓存. 合并时区分调用端指定的 calleeIp/calleePort 以及影响路由的 userId, callerMid,
+ * 不区分 cookies 等其他调用上下文, 只适合与调用者无关的读方法.
+ * <p>
+ * 通过 soa.openapi.singleflight.methods 配置开启的方法, 格式: service:method,service:method
+ * (service 与 PostUtil 调用时传入的服务名一致, 可以是简名或全限定名), 也可以调用 {@link #enable(String, String)} 开启
+ */
+public final class SingleFlight {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SingleFlight.class);
+
+    /**
+     * service -> 开启合并的方法
+     */
+    private static final Map<String, Set<String>> enabledMethods = new ConcurrentHashMap<>();
+
+    private static final Map<Key, CompletableFuture<String>> inflight = new ConcurrentHashMap<>();
+
+    private static final LongAdder sharedCount = new LongAdder();
+
+    static {
+        String config = EnvUtil.get("soa.openapi.singleflight.methods", "");
+        for (String item : config.split(",")) {
+            int separator = item.lastIndexOf(':');
+            if (separator > 0) {
+                enable(item.substring(0, separator).trim(), item.substring(separator + 1).trim());
+            }
+        }
+    }
+
+    private SingleFlight() {
+    }
+
+    public static void enable(String service, String method) {
+        enabledMethods.computeIfAbsent(service, k -> ConcurrentHashMap.newKeySet()).add(method);
+        LOGGER.info("single-flight enabled for {}:{}", service, method);
+    }
+
+    public static void disable(String service, String method) {
+        Set<String> methods = enabledMethods.get(service);
+        if (methods != null) {
+            methods.remove(method);
+        }
+    }
+
+    public static boolean isEnabled(String service, String method) {
+        Set<String> methods = enabledMethods.get(service);
+        return methods != null && methods.contains(method);
+    }
+
+    /**
+     * @return 累计共享了其他请求结果(未向后端发出)的请求数
+     */
+    public static long getSharedCount() {
+        return sharedCount.sum();
+    }
+
+    /**
+     * 若已有相同的请求在途, 共享该请求的结果; 否则由当前线程发起调用
+     * <p>
+     * 每个调用者拿到的都是依赖于共享调用的独立 future, 某个调用者对 future 的 complete/cancel 不会影响其他调用者
+     *
+     * @param call 实际的调用, 只有第一个请求会执行
+     */
+    static CompletableFuture<String> share(String service, String version, String method, String parameter,
+                                           InvocationContext ctx, Callable<CompletableFuture<String>> call) throws Exception {
+        Key key = new Key(service, version, method, parameter, ctx.calleeIp().orElse(null), ctx.calleePort().orElse(null),
+                ctx.userId().orElse(null), ctx.callerMid().orElse(null));
+        CompletableFuture<String> existing = inflight.get(key);
+        if (existing == null) {
+            CompletableFuture<String> leader = new CompletableFuture<>();
+            existing = inflight.putIfAbsent(key, leader);
+            if (existing == null) {
+                return lead(key, leader, call);
+            }
+        }
+        sharedCount.increment();
+        return existing.thenApply(Function.identity());
+    }
+
+    private static CompletableFuture<String> lead(Key key, CompletableFuture<String> leader,
+                                                  Callable<CompletableFuture<String>> call) throws Exception {
+        try {
+            call.call().whenComplete((result, ex) -> {
+                inflight.remove(key, leader);
+                if (ex != null) {
+                    leader.completeExceptionally(ex);
+                } else {
+                    leader.complete(result);
+                }
+            });
+        } catch (Exception e) {
+            inflight.remove(key, leader);
+            leader.completeExceptionally(e);
+            throw e;
+        }
+        return leader.thenApply(Function.identity());
+    }
+
+    /**
+     * 同步等待结果, 调用失败时抛出原始异常
+     */
+    static String await(CompletableFuture<String> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            while (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    private static final class Key {
+        private final String service;
+        private final String version;
+        private final String method;
+        private final String parameter;
+        private final Integer calleeIp;
+        private final Integer calleePort;
+        private final Long userId;
+        private final String callerMid;
+        private final int hash;
+
+        Key(String service, String version, String method, String parameter,
+            Integer calleeIp, Integer calleePort, Long userId, String callerMid) {
+            this.service = service;
+            this.version = version;
+            this.method = method;
+            this.parameter = parameter;
+            this.calleeIp = calleeIp;
+            this.calleePort = calleePort;
+            this.userId = userId;
+            this.callerMid = callerMid;
+            this.hash = Objects.hash(service, version, method, parameter, calleeIp, calleePort, userId, callerMid);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && service.equals(other.service) && version.equals(other.version)
+                    && method.equals(other.method) && Objects.equals(parameter, other.parameter)
+                    && Objects.equals(calleeIp, other.calleeIp) && Objects.equals(calleePort, other.calleePort)
+                    && Objects.equals(userId, other.userId) && Objects.equals(callerMid, other.callerMid);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}